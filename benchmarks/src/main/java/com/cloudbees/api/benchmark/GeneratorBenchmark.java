@@ -0,0 +1,74 @@
+package com.cloudbees.api.benchmark;
+
+import com.cloudbees.api.TokenGenerator;
+import com.cloudbees.api.cr.Credential;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting a cached token out of a generator, directly or through a {@link Credential}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class GeneratorBenchmark {
+    private TokenGenerator generator;
+    private TokenRequest request;
+    private Credential credential;
+
+    @Setup
+    public void setUp() throws OauthClientException {
+        generator = new Tokens.Generator("kohsuke").withCache();
+        request = new TokenRequest()
+                .withAccountName("kohsuke")
+                .withScope(Tokens.READ)
+                .withScope(Tokens.WRITE);
+        credential = generator.asCredential(request);
+        generator.createToken(request);
+    }
+
+    /**
+     * Each thread authorizes its own connection, which is never actually opened.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        HttpURLConnection con;
+
+        @Setup
+        public void setUp() throws IOException {
+            con = (HttpURLConnection)new URL("http://localhost/").openConnection();
+        }
+    }
+
+    @Benchmark
+    public OauthToken createToken() throws OauthClientException {
+        return generator.createToken(request);
+    }
+
+    @Benchmark
+    public HttpURLConnection asCredential(Connection c) throws IOException {
+        credential.authorizeRequest(c.con);
+        return c.con;
+    }
+}
@@ -0,0 +1,50 @@
+package com.cloudbees.api.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, such as a regular expression
+ * to pick benchmarks, and always with {@link GCProfiler} so that the allocation rate of each benchmark
+ * is reported next to its throughput.
+ *
+ * <p>
+ * Unless the number of threads is given with "-t", every benchmark is run with 1, 2, 4, ... threads
+ * up to the number of processors, to show how it scales.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.getThreads().hasValue()) {
+            new Runner(options(cmd).build()).run();
+            return;
+        }
+        for (int n : threadCounts(Runtime.getRuntime().availableProcessors())) {
+            System.out.println("# Running with "+n+" thread(s)");
+            new Runner(options(cmd).threads(n).build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(CommandLineOptions cmd) {
+        return new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class);
+    }
+
+    /**
+     * Powers of two below the given number, and the number itself.
+     */
+    static List<Integer> threadCounts(int max) {
+        List<Integer> r = new ArrayList<Integer>();
+        for (int n=1; n<max; n*=2)
+            r.add(n);
+        r.add(max);
+        return r;
+    }
+}
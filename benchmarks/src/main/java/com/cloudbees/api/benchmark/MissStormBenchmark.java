@@ -0,0 +1,76 @@
+package com.cloudbees.api.benchmark;
+
+import com.cloudbees.api.TokenValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Every validation is a cache miss that goes to a validator that takes a while to respond,
+ * like the OAuth server would.
+ *
+ * <p>
+ * {@link #sharing} consecutive validations, typically from different threads, are for the same token,
+ * which shows how well concurrent misses of one token are coalesced.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MissStormBenchmark {
+    /**
+     * Latency injected to each call to the validator behind the cache.
+     */
+    @Param({"0","1000"})
+    public int latencyMicros;
+
+    @Param({"1","64"})
+    public int sharing;
+
+    private TokenValidator validator;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        validator = new SlowValidator(latencyMicros).withCache(CacheBuilder.newBuilder().maximumSize(65536));
+    }
+
+    @Benchmark
+    public OauthToken miss() throws OauthClientException {
+        return validator.validateToken("account=user"+counter.getAndIncrement()/sharing);
+    }
+
+    static class SlowValidator extends Tokens.Validator {
+        private final long latency;
+
+        SlowValidator(int latencyMicros) {
+            this.latency = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        }
+
+        @Override
+        public OauthToken validateToken(String token) throws OauthClientException {
+            if (latency>0)
+                LockSupport.parkNanos(latency);
+            return super.validateToken(token);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.cloudbees.api.benchmark;
+
+import com.cloudbees.api.TokenCacheOptions;
+import com.cloudbees.api.TokenValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clients presenting invalid tokens, either made up on the spot or presented over and over,
+ * and how valid tokens fare in the meantime.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class NegativeFloodBenchmark {
+    @Param({"false","true"})
+    public boolean filter;
+
+    private TokenValidator validator;
+    private String[] invalid, valid;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup
+    public void setUp() throws OauthClientException {
+        validator = new Tokens.Validator().withCache(CacheBuilder.newBuilder().maximumSize(65536),
+                new TokenCacheOptions()
+                        .withNegativeCache(1, TimeUnit.HOURS, 65536)
+                        .withNegativeFilter(filter));
+        invalid = Tokens.create("invalid", 4096);
+        valid = Tokens.create("account=user", 4096);
+        for (String t : invalid)
+            validator.validateToken(t);
+        for (String t : valid)
+            validator.validateToken(t);
+    }
+
+    @Benchmark
+    public OauthToken freshInvalid() throws OauthClientException {
+        return validator.validateToken("invalid-fresh"+counter.getAndIncrement());
+    }
+
+    @Benchmark
+    public OauthToken repeatedInvalid(Tokens t) throws OauthClientException {
+        return validator.validateToken(t.next(invalid));
+    }
+
+    @Benchmark
+    public OauthToken validHit(Tokens t) throws OauthClientException {
+        return validator.validateToken(t.next(valid));
+    }
+}
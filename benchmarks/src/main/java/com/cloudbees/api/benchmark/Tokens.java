@@ -0,0 +1,87 @@
+package com.cloudbees.api.benchmark;
+
+import com.cloudbees.api.MockTokenGenerator;
+import com.cloudbees.api.MockTokenValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Walks over a set of tokens, starting at a random point so that threads don't march in lockstep.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Thread)
+public class Tokens {
+    private int i;
+
+    @Setup
+    public void setUp() {
+        i = new Random().nextInt();
+    }
+
+    String next(String[] tokens) {
+        return tokens[(i++)&(tokens.length-1)];
+    }
+
+    /**
+     * Creates a power-of-two number of distinct tokens in the format of {@link com.cloudbees.api.MockTokenValidator}.
+     */
+    static String[] create(String prefix, int n) {
+        String[] tokens = new String[n];
+        for (int i=0; i<n; i++)
+            tokens[i] = prefix+i+",scope="+READ+" "+WRITE;
+        return tokens;
+    }
+
+    /**
+     * {@link MockTokenValidator} whose tokens live for an hour like real ones do, so that caches keep them.
+     * Tokens of {@link MockTokenValidator} itself have no lifetime, so they are never cached.
+     */
+    static class Validator extends MockTokenValidator {
+        @Override
+        public OauthToken validateToken(String token) throws OauthClientException {
+            OauthToken t = super.validateToken(token);
+            if (t!=null)
+                t.setExpiresIn(LIFETIME);
+            return t;
+        }
+    }
+
+    /**
+     * {@link MockTokenGenerator} whose tokens live for an hour, for the same reason as {@link Validator}.
+     */
+    static class Generator extends MockTokenGenerator {
+        Generator(String account) {
+            super(account);
+        }
+
+        @Override
+        public OauthToken createToken(TokenRequest r) throws OauthClientException {
+            OauthToken t = super.createToken(r);
+            t.setExpiresIn(LIFETIME);
+            return t;
+        }
+
+        @Override
+        public OauthToken createOAuthClientToken(Collection<String> scopes) throws OauthClientException {
+            OauthToken t = super.createOAuthClientToken(scopes);
+            t.setExpiresIn(LIFETIME);
+            return t;
+        }
+    }
+
+    /**
+     * Lifetime of the tokens, in seconds, which is much longer than any benchmark runs.
+     */
+    static final int LIFETIME = 3600;
+
+    static final String READ = "https://api.cloudbees.com/v2/users/read";
+    static final String WRITE = "https://api.cloudbees.com/v2/users/write";
+}
@@ -0,0 +1,72 @@
+package com.cloudbees.api.benchmark;
+
+import com.cloudbees.api.OauthTokenView;
+import com.cloudbees.api.TokenCacheOptions;
+import com.cloudbees.api.TokenValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of tokens that are all in the cache.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ValidatorBenchmark {
+    @Param({"false","true"})
+    public boolean fingerprint;
+
+    private TokenValidator validator;
+    private String[] tokens;
+
+    @Setup
+    public void setUp() throws OauthClientException {
+        validator = new Tokens.Validator().withCache(CacheBuilder.newBuilder().maximumSize(65536),
+                new TokenCacheOptions().withFingerprintKeys(fingerprint));
+        tokens = Tokens.create("account=user", 4096);
+        for (String t : tokens)
+            validator.validateToken(t);
+    }
+
+    @Benchmark
+    public OauthToken hit(Tokens t) throws OauthClientException {
+        return validator.validateToken(t.next(tokens));
+    }
+
+    /**
+     * Same as {@link #hit(Tokens)} but without making a copy of the token.
+     */
+    @Benchmark
+    public OauthTokenView hitView(Tokens t) throws OauthClientException {
+        return validator.validateTokenView(t.next(tokens));
+    }
+
+    @Benchmark
+    public OauthToken scoped(Tokens t) throws OauthClientException {
+        return validator.validateToken(t.next(tokens), Tokens.READ);
+    }
+
+    @Benchmark
+    public OauthToken scopedBoth(Tokens t) throws OauthClientException {
+        return validator.validateToken(t.next(tokens), Tokens.READ, Tokens.WRITE);
+    }
+}
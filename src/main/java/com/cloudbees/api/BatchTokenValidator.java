@@ -0,0 +1,34 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * {@link TokenValidator} whose backend can validate many tokens in one round trip.
+ *
+ * <p>
+ * {@link TokenValidator#withBatching(long, java.util.concurrent.TimeUnit, int, java.util.concurrent.Executor)}
+ * sends the whole batch of the tokens it has collected to {@link #validateTokens(Collection)} of such a validator.
+ * Other validators get the tokens one by one.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class BatchTokenValidator extends TokenValidator {
+    /**
+     * Validates all the tokens in one call to the backend.
+     */
+    @Override
+    public abstract Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException;
+
+    /**
+     * Validates the token as a batch of one.
+     */
+    @Override
+    public OauthToken validateToken(String token) throws OauthClientException {
+        return validateTokens(Collections.singleton(token)).get(token);
+    }
+}
@@ -0,0 +1,189 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the tokens that are being validated at around the same time, and validates them together.
+ *
+ * <p>
+ * A batch is sent once it reaches the maximum size, or once the window has passed since
+ * its first token arrived, whichever comes first. If {@link #base} is a {@link BatchTokenValidator},
+ * the whole batch is sent to it in one call. Otherwise the tokens are validated in parallel,
+ * bounded by the size of the executor.
+ *
+ * <p>
+ * Windows are timed on a thread of their own, not by the executor, so that a batch isn't held up
+ * behind the calls of the previous ones when the executor is busy.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+class BatchingTokenValidator extends TokenValidator {
+    private final TokenValidator base;
+    private final long window;
+    private final int maxBatchSize;
+    private final Executor executor;
+
+    /**
+     * Tokens waiting to be sent, or null if there's none. Guarded by {@code this}.
+     */
+    private Map<String,SettableFuture<OauthToken>> pending;
+    /**
+     * Sends {@link #pending} when the window has passed.
+     */
+    private ScheduledFuture<?> timer;
+
+    /**
+     * @param window
+     *      In nanoseconds.
+     */
+    BatchingTokenValidator(TokenValidator base, long window, int maxBatchSize, Executor executor) {
+        this.base = base;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public OauthToken validateToken(String token) throws OauthClientException {
+        return SingleFlight.join(validateTokenAsync(token));
+    }
+
+    @Override
+    public ListenableFuture<OauthToken> validateTokenAsync(String token) {
+        if (token==null)    return Futures.immediateFuture(null);
+
+        SettableFuture<OauthToken> f;
+        Map<String,SettableFuture<OauthToken>> full = null;
+        synchronized (this) {
+            if (pending==null)
+                pending = new LinkedHashMap<String,SettableFuture<OauthToken>>();
+            f = pending.get(token);
+            if (f==null) {
+                f = SettableFuture.create();
+                pending.put(token,f);
+            }
+
+            if (pending.size()>=maxBatchSize) {
+                full = pending;
+                pending = null;
+                if (timer!=null) {
+                    timer.cancel(false);
+                    timer = null;
+                }
+            } else
+            if (timer==null)
+                timer = schedule();
+        }
+
+        if (full!=null)
+            send(full);
+        return f;
+    }
+
+    /**
+     * Queues up all the tokens before waiting for any of them, so that they go out together.
+     */
+    @Override
+    public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+        Map<String,ListenableFuture<OauthToken>> futures = new LinkedHashMap<String,ListenableFuture<OauthToken>>();
+        for (String t : tokens) {
+            if (!futures.containsKey(t))
+                futures.put(t,validateTokenAsync(t));
+        }
+
+        Map<String,OauthToken> r = new LinkedHashMap<String,OauthToken>();
+        for (Map.Entry<String,ListenableFuture<OauthToken>> e : futures.entrySet())
+            r.put(e.getKey(),SingleFlight.join(e.getValue()));
+        return r;
+    }
+
+    private ScheduledFuture<?> schedule() {
+        return TIMER.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, window, TimeUnit.NANOSECONDS);
+    }
+
+    private void flush() {
+        Map<String,SettableFuture<OauthToken>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+            timer = null;
+        }
+        if (batch!=null)
+            send(batch);
+    }
+
+    private void send(final Map<String,SettableFuture<OauthToken>> batch) {
+        try {
+            if (base instanceof BatchTokenValidator) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            Map<String,OauthToken> r = base.validateTokens(batch.keySet());
+                            for (Map.Entry<String,SettableFuture<OauthToken>> e : batch.entrySet())
+                                e.getValue().set(r.get(e.getKey()));
+                        } catch (Throwable t) {
+                            for (SettableFuture<OauthToken> f : batch.values())
+                                f.setException(t);
+                        }
+                    }
+                });
+            } else {
+                for (final Map.Entry<String,SettableFuture<OauthToken>> e : batch.entrySet()) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                e.getValue().set(base.validateToken(e.getKey()));
+                            } catch (Throwable t) {
+                                e.getValue().setException(t);
+                            }
+                        }
+                    });
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            // futures that are already running are unaffected by setException
+            for (SettableFuture<OauthToken> f : batch.values())
+                f.setException(e);
+        }
+    }
+
+    @Override
+    public void invalidate(String token) {
+        base.invalidate(token);
+    }
+
+    @Override
+    public void invalidateAccount(String account) {
+        base.invalidateAccount(account);
+    }
+
+    @Override
+    public void invalidateScope(String scope) {
+        base.invalidateScope(scope);
+    }
+
+    /**
+     * Times the windows of all the validators. It only hands batches over to their executors.
+     */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("BatchingTokenValidator timer").setDaemon(true).build());
+}
@@ -0,0 +1,34 @@
+package com.cloudbees.api;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What {@link CachedTokenValidator} and {@link CachedTokenGenerator} need from their cache,
+ * so that they work the same on the engines of this library, such as {@link TinyLfuCache},
+ * and on Guava's caches through {@link GuavaCacheEngine}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+interface CacheEngine<K,V> {
+    /**
+     * Gets the value of the key, which counts as a use of the entry for the eviction policy.
+     */
+    @CheckForNull V getIfPresent(K key);
+
+    void put(K key, V value);
+
+    void invalidate(Object key);
+
+    /**
+     * Live view of the entries, through which entries can also be removed or replaced.
+     */
+    ConcurrentMap<K,V> asMap();
+
+    long size();
+
+    /**
+     * Number of entries removed to keep the cache within its bounds.
+     */
+    long evictionCount();
+}
@@ -0,0 +1,15 @@
+package com.cloudbees.api;
+
+/**
+ * Notified when an entry is evicted, removed, or replaced from a cache engine of this library,
+ * such as {@link TinyLfuCache}, outside its locks.
+ *
+ * <p>
+ * Guava's {@link com.google.common.cache.RemovalListener} can't be reused here,
+ * as its notifications can't be created outside Guava.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+interface CacheRemovalListener<K,V> {
+    void onRemoval(K key, V value);
+}
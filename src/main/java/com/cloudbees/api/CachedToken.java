@@ -1,33 +1,201 @@
 package com.cloudbees.api;
 
 import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Cached {@link OauthToken} with accurate expiration tracking.
  *
+ * <p>
+ * The wrapped token is never handed out, so a valid instance can serve as
+ * an {@link OauthTokenView} that's shared by all the callers.
+ *
+ * <p>
+ * The token is either kept as is, or in a {@linkplain #compact() compact form} without its access token.
+ *
  * @author Kohsuke Kawaguchi
  */
-final class CachedToken {
+final class CachedToken implements OauthTokenView {
     /**
-     * Null if the token was invalid to begin with.
+     * Null if the token was invalid to begin with, or if it's kept in the compact form.
      */
     private final @Nullable OauthToken token;
+    /**
+     * In the compact form, the token without the access token as JSON, which is several times smaller than
+     * {@link OauthToken} and its strings.
+     */
+    private final @Nullable byte[] compact;
+    /**
+     * Of the token, kept apart so that views don't need to decode the compact form.
+     * Interned in the compact form, as lots of tokens share them.
+     */
+    private final @Nullable String account, scope;
     private final long expiration;
     private final long halfExpiration;
+    /**
+     * False if the token came without a lifetime.
+     */
+    private final boolean lifetime;
+    /**
+     * Time in milliseconds since the epoch at which we got this token.
+     */
+    private final long validatedAt = System.currentTimeMillis();
+    /**
+     * Approximate number of times this entry has been used. The first {@link #EXACT_HITS} hits are all counted,
+     * then only one in {@link #HIT_SAMPLING}, so that a popular token isn't written on every hit. Lost updates are fine.
+     */
+    private volatile int hits;
+    /**
+     * 1 while a background refresh of this token is in progress.
+     */
+    private volatile int refreshing;
+    /**
+     * Memoized results of {@link #validateScopes(String...)}, one {@link ScopeIndex} bit per scope.
+     */
+    private volatile long granted, denied;
+    /**
+     * Scheduled removal of this entry from the validator cache, if any.
+     */
+    private volatile ExpiryWheel.Entry<?,?> expiry;
 
     CachedToken(OauthToken token) {
         this.token = token;
+        this.compact = null;
+        this.account = token!=null ? token.account : null;
+        this.scope = token!=null ? token.scope : null;
         if (token!=null) {
             long now = System.currentTimeMillis();
             long e = TimeUnit.SECONDS.toMillis(token.getExpiresIn());
             expiration = now + e;
             halfExpiration = now + e /2;
-        } else
+            lifetime = e>0;
+        } else {
             expiration = halfExpiration = -1;
+            lifetime = false;
+        }
+    }
+
+    /**
+     * Restores a token whose expiration is already known, such as from {@link TokenSnapshot}.
+     *
+     * @param expiration
+     *      Time in milliseconds since the epoch, which takes precedence over {@link OauthToken#getExpiresIn()}.
+     */
+    CachedToken(OauthToken token, long expiration) {
+        this.token = token;
+        this.compact = null;
+        this.account = token!=null ? token.account : null;
+        this.scope = token!=null ? token.scope : null;
+        this.expiration = expiration;
+        long now = System.currentTimeMillis();
+        this.halfExpiration = now + (expiration-now)/2;
+        this.lifetime = token!=null && expiration>now;
+    }
+
+    private CachedToken(CachedToken src, byte[] compact) {
+        this.token = null;
+        this.compact = compact;
+        this.account = src.account!=null ? STRINGS.intern(src.account) : null;
+        this.scope = src.scope!=null ? STRINGS.intern(src.scope) : null;
+        this.expiration = src.expiration;
+        this.halfExpiration = src.halfExpiration;
+        this.lifetime = src.lifetime;
+    }
+
+    /**
+     * Returns an equivalent entry that keeps the token in the compact form, without the access token.
+     *
+     * <p>
+     * {@link #toOauthToken()} then has to decode the token, but views don't.
+     */
+    CachedToken compact() throws IOException {
+        if (token==null)    return this;    // invalid, or compact already
+        OauthToken t = token.clone();
+        t.accessToken = null;
+        return new CachedToken(this,TokenCodec.toJson(t));
+    }
+
+    /**
+     * Returns false if the token was invalid to begin with.
+     */
+    boolean isValid() {
+        return token!=null || compact!=null;
+    }
+
+    /**
+     * Time in milliseconds since the epoch at which this entry stops being good.
+     */
+    long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Returns false if the token is invalid, or if it came without a lifetime ({@code expires_in} of 0 or less.)
+     * Such a token is good for the call that got it, but there's no telling for how long,
+     * so it must not be cached.
+     */
+    boolean hasLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Remembers the scheduled removal of this entry, so that it can be cancelled when the entry is removed
+     * some other way.
+     */
+    void setExpiry(ExpiryWheel.Entry<?,?> expiry) {
+        this.expiry = expiry;
+    }
+
+    void cancelExpiry() {
+        ExpiryWheel.Entry<?,?> e = expiry;
+        if (e!=null)
+            e.cancel();
+    }
+
+    long getValidatedAt() {
+        return validatedAt;
+    }
+
+    /**
+     * Estimated bytes of heap retained by this object and the token in it.
+     *
+     * @see TokenWeigher
+     */
+    long getRetainedSize() {
+        long n = TokenWeigher.align(TokenWeigher.OBJECT+64);
+        if (compact!=null) {
+            n += TokenWeigher.align(TokenWeigher.ARRAY+compact.length)
+               + TokenWeigher.sizeOf(account)
+               + TokenWeigher.sizeOf(scope);
+        } else
+        if (token!=null) {
+            n += TokenWeigher.align(TokenWeigher.OBJECT+5*4+4+8);
+            n += TokenWeigher.sizeOf(token.accessToken)
+               + TokenWeigher.sizeOf(token.refreshToken)
+               + TokenWeigher.sizeOf(token.account)
+               + TokenWeigher.sizeOf(token.scope)
+               + TokenWeigher.sizeOf(token.tokenType);
+        }
+        return n;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    void recordHit() {
+        int h = hits;
+        if (h<EXACT_HITS || (ThreadLocalRandom.current().nextInt()&(HIT_SAMPLING-1))==0)
+            hits = h+1;
     }
 
     /**
@@ -39,13 +207,113 @@ final class CachedToken {
         return halfExpiration < System.currentTimeMillis();
     }
 
-    public @CheckForNull OauthToken get() {
-        if (token==null)    return null;
-        OauthToken t = token.clone();
-        t.setExpiresIn(round(TimeUnit.MICROSECONDS.toSeconds(expiration - System.currentTimeMillis())));
+    /**
+     * Returns true if the token has outlived its lifetime.
+     */
+    public boolean isExpired() {
+        return expiration < System.currentTimeMillis();
+    }
+
+    /**
+     * Claims the right to refresh this token in the background.
+     *
+     * @return
+     *      true if the caller should schedule a refresh, false if someone else already has.
+     */
+    boolean startRefresh() {
+        return REFRESHING.compareAndSet(this,0,1);
+    }
+
+    /**
+     * Called when the refresh started by {@link #startRefresh()} has failed,
+     * so that a later request can try again.
+     */
+    void refreshFailed() {
+        refreshing = 0;
+    }
+
+    public @CheckForNull OauthToken toOauthToken() {
+        OauthToken t;
+        if (compact!=null) {
+            try {
+                t = TokenCodec.fromJson(compact);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to decode a cached token", e);
+            }
+        } else {
+            if (token==null)    return null;
+            t = token.clone();
+        }
+        t.setExpiresIn(getExpiresIn());
         return t;
     }
 
+    public String getAccessToken() {
+        return token!=null ? token.accessToken : null;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Scopes granted to this token.
+     */
+    String[] getScopes() {
+        String s = scope;
+        if (s==null || s.trim().length()==0)
+            return new String[0];
+        return s.trim().split("\\s+");
+    }
+
+    public int getExpiresIn() {
+        return round(TimeUnit.MILLISECONDS.toSeconds(expiration - System.currentTimeMillis()));
+    }
+
+    /**
+     * Checks the scopes with a bitmask test, consulting the token only for scopes that
+     * this token hasn't been asked about before.
+     *
+     * <p>
+     * This relies on the token granting a set of scopes if and only if it grants each of them.
+     */
+    public boolean validateScopes(String... scopes) {
+        long mask = ScopeIndex.maskOf(scopes);
+        if (mask==0)    return grants(scopes);    // out of bits, or no scopes at all
+
+        long g = granted;
+        if ((g&mask)==mask)         return true;
+        if ((denied&mask)!=0)       return false;
+
+        for (String s : scopes) {
+            long b = ScopeIndex.bitOf(s);
+            if ((g&b)!=0)   continue;
+            if (grants(s)) {
+                set(GRANTED,b);
+            } else {
+                set(DENIED,b);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Asks {@link OauthToken#validateScopes(String...)}, decoding the compact form if need be,
+     * so that the answer is the same as without the cache.
+     */
+    private boolean grants(String... scopes) {
+        OauthToken t = token!=null ? token : toOauthToken();
+        return t!=null && t.validateScopes(scopes);
+    }
+
+    private void set(AtomicLongFieldUpdater<CachedToken> field, long bit) {
+        long v;
+        do {
+            v = field.get(this);
+        } while (!field.compareAndSet(this,v,v|bit));
+    }
+
     /**
      * Converts long to int by rounding values outside the range of int to the max/min values.
      */
@@ -54,4 +322,13 @@ final class CachedToken {
         if (l<Integer.MIN_VALUE)    return Integer.MIN_VALUE;
         return (int)l;
     }
+
+    private static final int EXACT_HITS = 16;
+    private static final int HIT_SAMPLING = 16;
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private static final AtomicLongFieldUpdater<CachedToken> GRANTED = AtomicLongFieldUpdater.newUpdater(CachedToken.class,"granted");
+    private static final AtomicLongFieldUpdater<CachedToken> DENIED = AtomicLongFieldUpdater.newUpdater(CachedToken.class,"denied");
+    private static final AtomicIntegerFieldUpdater<CachedToken> REFRESHING = AtomicIntegerFieldUpdater.newUpdater(CachedToken.class,"refreshing");
 }
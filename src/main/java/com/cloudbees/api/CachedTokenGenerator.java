@@ -1,117 +1,223 @@
 package com.cloudbees.api;
 
+import com.cloudbees.api.cr.Credential;
 import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.OauthToken;
 import com.cloudbees.api.oauth.TokenRequest;
-import com.google.common.cache.Cache;
+import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import org.codehaus.jackson.map.DeserializationConfig.Feature;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.introspect.VisibilityChecker.Std;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import javax.annotation.CheckForNull;
 import java.io.IOException;
-import java.util.Arrays;
+import java.net.HttpURLConnection;
 import java.util.Collection;
-import java.util.concurrent.ExecutionException;
-
-import static org.codehaus.jackson.annotate.JsonAutoDetect.Visibility.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Caching {@link TokenGenerator}.
  *
+ * <p>
+ * Requests are keyed by {@link TokenRequestKey}, so two requests for the same scopes
+ * in a different order share the same token.
+ *
  * @author Kohsuke Kawaguchi
  */
 class CachedTokenGenerator extends TokenGenerator {
-    private final Cache<String,CachedToken> cache;
+    private final CacheEngine<TokenRequestKey,CachedToken> cache;
+    private final TokenGenerator base;
+    private final SingleFlight<TokenRequestKey,CachedToken> flights = new SingleFlight<TokenRequestKey,CachedToken>();
+
+    /**
+     * If non-null, tokens are refreshed ahead of their expiration in this executor,
+     * and asynchronous requests are served from here.
+     */
+    private final Executor executor;
+    private final @CheckForNull CircuitBreaker breaker;
+    private final TokenMetrics metrics;
+    private final @CheckForNull SharedTier shared;
 
     /**
      * @param cb
      *      Partially configured cache.
      */
-    CachedTokenGenerator(CacheBuilder<Object,Object> cb, final TokenGenerator base) {
-        cache = cb.build(new CacheLoader<String,CachedToken>() {
-            @Override
-            public CachedToken load(String packed) throws Exception {
-                if (packed.startsWith(CREATE_TOKEN))
-                    return new CachedToken(base.createToken(unpackCreateToken(packed)));
-                if (packed.startsWith(CREATE_OAUTH_CLIENT_TOKEN))
-                    return new CachedToken(base.createOAuthClientToken(unpackOAuthClientToken(packed)));
-                throw new IllegalArgumentException(packed);
+    CachedTokenGenerator(CacheBuilder<Object,Object> cb, TokenCacheOptions options, TokenGenerator base) {
+        this.base = base;
+        this.executor = options.executor;
+        this.breaker = options.createCircuitBreaker();
+        CacheEngine<TokenRequestKey,CachedToken> c = options.createTinyLfuCache(null);
+        this.cache = c!=null ? c : new GuavaCacheEngine<TokenRequestKey,CachedToken>(options.applyMaximumBytes(cb).<TokenRequestKey,CachedToken>build());
+        this.metrics = options.getMetrics();
+        metrics.bind(cache);
+        this.shared = options.createSharedTier();
+    }
+
+    /**
+     * Creates a new token with {@link #base} and puts it into the cache,
+     * unless another JVM has already created one and put it in the shared store.
+     */
+    private Callable<CachedToken> loader(final TokenRequestKey key) {
+        return new Callable<CachedToken>() {
+            public CachedToken call() throws Exception {
+                CachedToken c = null;
+                if (shared!=null) {
+                    c = shared.get(sharedKeyOf(key),null);
+                    if (c!=null && c.isHalfExpired())
+                        c = null;   // time to get a new one
+                }
+                if (c==null) {
+                    OauthToken t = callBase(key);
+                    c = new CachedToken(t);
+                    if (shared!=null)
+                        shared.put(sharedKeyOf(key),t,c.getExpiration());
+                }
+                cache.put(key,c);
+                return c;
             }
-        });
+        };
     }
 
-    String pack(TokenRequest req) throws OauthClientException {
-        try {
-            return CREATE_TOKEN + MAPPER.writeValueAsString(req);
-        } catch (IOException e) {
-            throw new OauthClientException("Failed to marshal TokenRequest",e);
-        }
+    private static String sharedKeyOf(TokenRequestKey key) {
+        return "generated:"+key.getDigest();
     }
 
-    TokenRequest unpackCreateToken(String packed) throws OauthClientException {
+    private OauthToken callBase(TokenRequestKey key) throws OauthClientException {
+        boolean probe = breaker!=null && breaker.check(System.currentTimeMillis());
+        long start = System.nanoTime();
+        boolean success = false, limited = false;
         try {
-            return MAPPER.readValue(packed.substring(CREATE_TOKEN.length()), TokenRequest.class);
-        } catch (IOException e) {
-            throw new OauthClientException("Failed to unmarshal TokenRequest",e);
+            OauthToken t;
+            if (key.isClientToken())
+                t = base.createOAuthClientToken(key.getScopes());
+            else
+                t = base.createToken(key.getRequest());
+            success = true;
+            return t;
+        } catch (UpstreamLimitException e) {
+            // the server wasn't called, so this isn't its failure
+            limited = true;
+            throw e;
+        } finally {
+            if (limited) {
+                if (breaker!=null)
+                    breaker.cancel(probe);
+            } else {
+                metrics.recordLoad(success,System.nanoTime()-start);
+                if (breaker!=null)
+                    breaker.record(success,probe,System.currentTimeMillis());
+            }
         }
     }
 
-    private Collection<String> unpackOAuthClientToken(String packed) {
-        return Arrays.asList(packed.substring(CREATE_OAUTH_CLIENT_TOKEN.length()).split(" "));
+    @Override
+    public OauthToken createToken(TokenRequest tokenRequest) throws OauthClientException {
+        return compute(TokenRequestKey.of(tokenRequest));
     }
 
+    /**
+     * Completes immediately if the token is in the cache. Otherwise the token is created in the executor
+     * given to {@link TokenCacheOptions#withExecutor(Executor)}, and concurrent requests for the same token,
+     * blocking or not, share the same creation.
+     */
     @Override
-    public OauthToken createToken(TokenRequest tokenRequest) throws OauthClientException {
-        return compute(pack(tokenRequest));
+    public ListenableFuture<OauthToken> createTokenAsync(TokenRequest tokenRequest) {
+        TokenRequestKey key = TokenRequestKey.of(tokenRequest);
+        CachedToken c = lookup(key);
+        if (c!=null)
+            return Futures.immediateFuture(c.toOauthToken());
+
+        Executor e = executor!=null ? executor : MoreExecutors.sameThreadExecutor();
+        return Futures.transform(flights.load(key,loader(key),e), new Function<CachedToken,OauthToken>() {
+            public OauthToken apply(CachedToken c) {
+                return c.toOauthToken();
+            }
+        });
     }
 
+    /**
+     * Computes the key upfront, since the request isn't supposed to change.
+     */
     @Override
-    public OauthToken createOAuthClientToken(Collection<String> scopes) throws OauthClientException {
-        String p = CREATE_OAUTH_CLIENT_TOKEN + StringUtils.join(scopes, " ");
-        return compute(p);
+    public Credential asCredential(TokenRequest r) {
+        final TokenRequestKey key = TokenRequestKey.of(r);
+        return new Credential() {
+            @Override
+            public void authorizeRequest(HttpURLConnection con) throws IOException {
+                try {
+                    compute(key).asCredential().authorizeRequest(con);
+                } catch (OauthClientException e) {
+                    throw (IOException)new IOException("Failed to authenticate the request").initCause(e);
+                }
+            }
+        };
     }
 
-    private OauthToken compute(String p) throws OauthClientException {
-        try {
+    @Override
+    public OauthToken createOAuthClientToken(Collection<String> scopes) throws OauthClientException {
+        return compute(TokenRequestKey.ofClientToken(scopes));
+    }
 
-            OauthToken t = getFromCache(p);
-            if (t==null) {
-                // definitely get a new value
-                this.cache.invalidate(p);
-                t = this.cache.get(p).get();
-            }
-            return t;
-        } catch (ExecutionException e) {
-            // not unwrapping an exception to capture the call stack
-            throw new OauthClientException(e);
-        }
+    private OauthToken compute(TokenRequestKey p) throws OauthClientException {
+        CachedToken c = lookup(p);
+        if (c==null)
+            c = flights.get(p,loader(p));
+        return c.toOauthToken();
     }
 
     /**
-     * Gets the cached token valid in the cache, or if it's stale return null.
+     * Gets the token in the cache if it's still good to be served, or null if a new one needs to be created.
+     *
+     * If we are refreshing tokens ahead of time, a half-expired token is returned
+     * while a new one is created in the background.
      */
-    private OauthToken getFromCache(String p) throws ExecutionException {
-        CachedToken cache = this.cache.get(p);
-
-        if (cache.isHalfExpired())
+    private @CheckForNull CachedToken lookup(TokenRequestKey p) {
+        CachedToken c = cache.getIfPresent(p);
+        if (c==null) {
+            metrics.record(TokenMetrics.Event.MISS);
             return null;
+        }
+        if (!c.isHalfExpired()) {
+            metrics.record(TokenMetrics.Event.HIT);
+            return c;
+        }
 
-        OauthToken t = cache.get();
-        if(t==null || t.isExpired()){
-            return t;
+        if (executor!=null && !c.isExpired()) {
+            // the current token is still good, so keep serving it while a new one is fetched
+            if (c.startRefresh())
+                refresh(p,c);
+            metrics.record(TokenMetrics.Event.HIT);
+            return c;
         }
-        return t;
+
+        // definitely get a new value.
+        // only evict the instance we saw, so that concurrent callers share one reload
+        if (cache.asMap().remove(p,c))
+            metrics.recordExpirations(1);
+        metrics.record(TokenMetrics.Event.STALE_HIT);
+        return null;
     }
 
-    /*package*/ static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * Replaces the half-expired token {@code c} by a fresh one in the background.
+     * If that fails, {@code c} remains in the cache until it really expires.
+     */
+    private void refresh(TokenRequestKey p, final CachedToken c) {
+        Futures.addCallback(flights.load(p,loader(p),executor), new FutureCallback<CachedToken>() {
+            public void onSuccess(CachedToken result) {
+            }
 
-    static {
-        MAPPER.setVisibilityChecker(new Std(NONE, NONE, NONE, NONE, ANY));
-        MAPPER.getDeserializationConfig().set(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            public void onFailure(Throwable t) {
+                LOGGER.log(Level.WARNING, "Failed to refresh a token ahead of its expiration", t);
+                c.refreshFailed();
+            }
+        });
     }
 
-    private static final String CREATE_TOKEN = "createToken:";
-    private static final String CREATE_OAUTH_CLIENT_TOKEN = "createOAuthClientToken:";
+    private static final Logger LOGGER = Logger.getLogger(CachedTokenGenerator.class.getName());
 }
@@ -2,48 +2,630 @@ package com.cloudbees.api;
 
 import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.OauthToken;
-import com.google.common.cache.Cache;
+import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Cached {@link TokenValidator}
  *
+ * <p>
+ * Each entry is evicted when the token it holds expires, in addition to whatever
+ * eviction policy the {@link CacheBuilder} specifies. Tokens that come without a lifetime
+ * ({@code expires_in} of 0) aren't cached at all, as there's no telling how long they are good for.
+ * Invalid tokens are kept in a separate {@link NegativeCache}.
+ *
+ * <p>
+ * The cache is keyed either by the token itself or by its {@link TokenFingerprint}.
+ * In the latter case, the cached tokens are kept in a {@linkplain CachedToken#compact() compact form}
+ * that doesn't retain the access token either.
+ *
+ * <p>
+ * To ride out an outage of the OAuth server, calls to it can go through a {@link CircuitBreaker},
+ * and expired tokens can be kept around for a grace period, during which they are served
+ * if they fail to revalidate.
+ *
+ * <p>
+ * Tokens can be invalidated individually, or by their accounts or scopes. The latter two are
+ * backed by {@link SecondaryIndex}es, which are kept up to date by a removal listener.
+ *
+ * <p>
+ * To bound how long a revoked token keeps working, tokens that have been trusted for too long
+ * are revalidated in the background by {@link Revalidator}.
+ *
  * @author Kohsuke Kawaguchi
  */
 class CachedTokenValidator extends TokenValidator {
 
-    private final Cache<String,CachedToken> cache;
+    private final TokenValidator base;
+    private final CacheEngine<Object,CachedToken> cache;
+    private final ExpiryWheel<Object,CachedToken> wheel;
+    private final NegativeCache negative;
+    private final SingleFlight<Object,CachedToken> flights = new SingleFlight<Object,CachedToken>();
+    private final boolean fingerprint;
+    /**
+     * Executor that asynchronous and bulk validations use to talk to {@link #base}.
+     */
+    private final Executor executor;
+    private final @CheckForNull CircuitBreaker breaker;
+    /**
+     * How long past the expiration do we keep a token, in case it can't be revalidated.
+     */
+    private final long staleGrace;
+    private final TokenMetrics metrics;
+    private final @CheckForNull TokenSnapshot snapshot;
+    private final @CheckForNull SharedTier shared;
+    /**
+     * Cache keys by accounts and scopes, or null if we couldn't install the removal listener
+     * to keep them up to date, in which case invalidation scans the whole cache.
+     */
+    private final @CheckForNull SecondaryIndex accounts, scopes;
+    private final @CheckForNull Revalidator revalidator;
+    /**
+     * Counts invalidations, so that a load that was in flight during one doesn't put back what was invalidated.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
 
     /**
      * @param cb
      *      Partially configured cache.
      */
-    CachedTokenValidator(CacheBuilder<Object,Object> cb, final TokenValidator base) {
-        cache = cb.build(new CacheLoader<String,CachedToken>() {
-            @Override
-            public CachedToken load(String token) throws Exception {
-                return new CachedToken(base.validateToken(token));
+    CachedTokenValidator(CacheBuilder<Object,Object> cb, TokenCacheOptions options, TokenValidator base) {
+        this.base = base;
+
+        CacheRemovalListener<Object,CachedToken> listener = new CacheRemovalListener<Object,CachedToken>() {
+            public void onRemoval(Object key, CachedToken value) {
+                removed(key,value);
             }
-        });
+        };
+        CacheEngine<Object,CachedToken> c = options.createPartitionedCache(listener);
+        if (c==null)
+            c = options.createTinyLfuCache(listener);
+        cb = options.applyMaximumBytes(cb);
+        SecondaryIndex a = null, s = null;
+        if (c!=null) {
+            a = new SecondaryIndex();
+            s = new SecondaryIndex();
+        } else {
+            try {
+                c = new GuavaCacheEngine<Object,CachedToken>(cb.removalListener(new RemovalListener<Object,CachedToken>() {
+                    public void onRemoval(RemovalNotification<Object,CachedToken> n) {
+                        removed(n.getKey(),n.getValue());
+                    }
+                }).<Object,CachedToken>build());
+                a = new SecondaryIndex();
+                s = new SecondaryIndex();
+            } catch (IllegalStateException e) {
+                // evicted entries also stay in the wheel until their deadline then
+                LOGGER.log(Level.FINE, "The cache already has a removal listener, so invalidation will scan the whole cache", e);
+                c = new GuavaCacheEngine<Object,CachedToken>(cb.<Object,CachedToken>build());
+            }
+        }
+        this.cache = c;
+        this.accounts = a;
+        this.scopes = s;
+
+        this.wheel = new ExpiryWheel<Object,CachedToken>(cache.asMap(), TICK, WHEEL_SIZE, System.currentTimeMillis());
+        this.negative = options.createNegativeCache();
+        this.fingerprint = options.fingerprint;
+        this.executor = options.executor!=null ? options.executor : MoreExecutors.sameThreadExecutor();
+        this.breaker = options.createCircuitBreaker();
+        this.staleGrace = options.staleGrace;
+        this.metrics = options.getMetrics();
+        metrics.bind(cache);
+        this.shared = options.createSharedTier();
+
+        if (options.snapshotFile!=null) {
+            snapshot = new TokenSnapshot(options.snapshotFile);
+            new SnapshotWriter(this).schedule(options.snapshotScheduler, options.snapshotPeriod);
+        } else
+            snapshot = null;
+
+        if (options.maxStaleness>0) {
+            revalidator = new Revalidator(options.maxStaleness, options.revalidationRate);
+            new RevalidationTask(this).schedule(options.revalidationScheduler, REVALIDATION_PERIOD);
+        } else
+            revalidator = null;
     }
 
-    @Override
-    public OauthToken validateToken(String token) throws OauthClientException {
+    /**
+     * Revalidates the tokens that have been trusted for too long, as many as the rate allows.
+     * Callers keep getting the current ones in the meantime.
+     */
+    /*package*/ void revalidate() {
+        for (Revalidator.Revalidation r : revalidator.poll(System.currentTimeMillis(),cache.asMap())) {
+            final CachedToken c = r.cached;
+            Futures.addCallback(flights.load(r.key,loader(r.key,r.token,true),executor), new FutureCallback<CachedToken>() {
+                public void onSuccess(CachedToken result) {
+                }
+
+                public void onFailure(Throwable t) {
+                    LOGGER.log(Level.FINE, "Failed to revalidate a token", t);
+                    c.refreshFailed();
+                }
+            });
+        }
+    }
+
+    /*package*/ void writeSnapshot() {
         try {
-            if (token==null)    return null;
+            int n = snapshot.write(cache.asMap());
+            LOGGER.log(Level.FINE, "Saved {0} tokens to the snapshot", n);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the token snapshot", e);
+        }
+    }
+
+    /**
+     * Periodic work of a validator, which doesn't keep the validator from being garbage collected,
+     * and cancels itself once it is.
+     */
+    private static abstract class Periodic implements Runnable {
+        private final WeakReference<CachedTokenValidator> validator;
+        private volatile ScheduledFuture<?> future;
+
+        Periodic(CachedTokenValidator validator) {
+            this.validator = new WeakReference<CachedTokenValidator>(validator);
+        }
+
+        void schedule(ScheduledExecutorService scheduler, long period) {
+            future = scheduler.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            CachedTokenValidator v = validator.get();
+            if (v!=null)
+                run(v);
+            else if (future!=null)
+                future.cancel(false);
+        }
+
+        abstract void run(CachedTokenValidator v);
+    }
+
+    private static final class SnapshotWriter extends Periodic {
+        SnapshotWriter(CachedTokenValidator validator) {
+            super(validator);
+        }
+
+        void run(CachedTokenValidator v) {
+            v.writeSnapshot();
+        }
+    }
 
-            CachedToken cache = this.cache.get(token);
-            OauthToken t = cache.get();
-            if(t==null || t.isExpired()){
-                return null;
+    private static final class RevalidationTask extends Periodic {
+        RevalidationTask(CachedTokenValidator validator) {
+            super(validator);
+        }
+
+        void run(CachedTokenValidator v) {
+            try {
+                v.revalidate();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to revalidate tokens", e);
+            }
+        }
+    }
+
+    /**
+     * Determines the key of the token in the caches.
+     */
+    private Object keyOf(String token) {
+        return fingerprint ? TokenFingerprint.of(token) : token;
+    }
+
+    /**
+     * Validates the token with {@link #base} and puts the result into either the main cache or the negative cache.
+     * If the token is already in either cache, or in the snapshot or in the shared store, {@link #base} isn't consulted.
+     *
+     * @param revalidating
+     *      True to always consult {@link #base}, as the token we have might have been revoked since.
+     */
+    private Callable<CachedToken> loader(final Object key, final String token, final boolean revalidating) {
+        return new Callable<CachedToken>() {
+            public CachedToken call() throws Exception {
+                long generation = invalidations.get();
+                if (!revalidating) {
+                    // another load might have finished between our lookup and this one
+                    CachedToken c = cache.asMap().get(key);
+                    if (c!=null && !c.isExpired())
+                        return c;
+                    if (negative.contains(key))
+                        return INVALID;
+                }
+                CachedToken c = revalidating ? null : restore(key,token);
+                if (c==null && shared!=null && !revalidating)
+                    c = shared.get(sharedKeyOf(key,token), fingerprint ? null : token);
+                if (c==null) {
+                    OauthToken t = callBase(token);
+                    c = new CachedToken(t);
+                    if (c.hasLifetime() && shared!=null) {
+                        OauthToken secretless = t.clone();
+                        secretless.accessToken = null;
+                        shared.put(sharedKeyOf(key,token), secretless, c.getExpiration());
+                    }
+                }
+                if (fingerprint)
+                    c = c.compact();    // don't keep the secret around
+                if (c.hasLifetime()) {
+                    c.setExpiry(wheel.schedule(key,c,c.getExpiration()+staleGrace));
+                    cache.put(key,c);
+                    index(key,c);
+                    if (invalidations.get()!=generation) {
+                        // the token might have been invalidated while we were loading it, before it was in the index
+                        cache.asMap().remove(key,c);
+                        if (shared!=null)
+                            shared.remove(sharedKeyOf(key,token));
+                    }
+                } else {
+                    if (!c.isValid())
+                        negative.add(key);
+                    if (revalidating) {
+                        cache.invalidate(key);
+                        if (shared!=null)
+                            shared.remove(sharedKeyOf(key,token));
+                    }
+                }
+                return c;
             }
+        };
+    }
+
+    private void index(Object key, CachedToken c) {
+        if (accounts==null) return;
+        if (c.getAccount()!=null)
+            accounts.add(c.getAccount(),key);
+        for (String s : c.getScopes())
+            scopes.add(s,key);
+    }
+
+    /**
+     * Called when an entry is removed from the cache.
+     */
+    private void removed(Object key, CachedToken c) {
+        if (c==null)    return;
+        c.cancelExpiry();
+        unindex(key,c);
+    }
+
+    /**
+     * If the key has been reloaded in the meantime, what the new entry has is left alone.
+     */
+    private void unindex(Object key, CachedToken c) {
+        if (accounts==null || key==null)  return;
+        CachedToken cur = cache.asMap().get(key);    // not to be counted as a hit or a miss
+        if (cur==c) return;
+
+        String a = c.getAccount();
+        if (a!=null && (cur==null || !a.equals(cur.getAccount())))
+            accounts.remove(a,key);
+        for (String s : c.getScopes()) {
+            if (cur==null || !Arrays.asList(cur.getScopes()).contains(s))
+                scopes.remove(s,key);
+        }
+    }
+
+    @Override
+    public void invalidate(String token) {
+        Object key = keyOf(token);
+        invalidations.incrementAndGet();
+        cache.invalidate(key);
+        if (snapshot!=null)
+            snapshot.forget(fingerprintOf(key,token));
+        if (shared!=null)
+            shared.remove(sharedKeyOf(key,token));
+        base.invalidate(token);
+    }
+
+    /**
+     * Tokens of the account that are in the snapshot but not restored yet can't be told apart from others,
+     * so the snapshot is abandoned. Tokens of the account that this validator has cached are removed from
+     * the shared store too, but those that only other JVMs have cached stay there until they expire.
+     */
+    @Override
+    public void invalidateAccount(String account) {
+        invalidations.incrementAndGet();
+        if (accounts!=null) {
+            for (Object key : accounts.get(account))
+                invalidateKey(key);
+        } else {
+            for (Map.Entry<Object,CachedToken> e : cache.asMap().entrySet()) {
+                if (account.equals(e.getValue().getAccount()) && cache.asMap().remove(e.getKey(),e.getValue()))
+                    forgetShared(e.getKey());
+            }
+        }
+        if (snapshot!=null)
+            snapshot.forgetAll();
+        base.invalidateAccount(account);
+    }
+
+    /**
+     * Like {@link #invalidateAccount(String)}, the snapshot is abandoned, and only the tokens
+     * this validator has cached are removed from the shared store.
+     */
+    @Override
+    public void invalidateScope(String scope) {
+        invalidations.incrementAndGet();
+        if (scopes!=null) {
+            for (Object key : scopes.get(scope))
+                invalidateKey(key);
+        } else {
+            for (Map.Entry<Object,CachedToken> e : cache.asMap().entrySet()) {
+                if (Arrays.asList(e.getValue().getScopes()).contains(scope) && cache.asMap().remove(e.getKey(),e.getValue()))
+                    forgetShared(e.getKey());
+            }
+        }
+        if (snapshot!=null)
+            snapshot.forgetAll();
+        base.invalidateScope(scope);
+    }
+
+    private void invalidateKey(Object key) {
+        cache.invalidate(key);
+        forgetShared(key);
+    }
+
+    /**
+     * Removes the token of the given cache key from the shared store, if there's one.
+     */
+    private void forgetShared(Object key) {
+        if (shared!=null)
+            // unless keyed by the fingerprint, the key is the token
+            shared.remove(sharedKeyOf(key, fingerprint ? null : (String)key));
+    }
+
+    private @CheckForNull CachedToken restore(Object key, String token) {
+        if (snapshot==null) return null;
+        return snapshot.restore(fingerprintOf(key,token), fingerprint ? null : token);
+    }
+
+    private TokenFingerprint fingerprintOf(Object key, String token) {
+        return fingerprint ? (TokenFingerprint)key : TokenFingerprint.of(token);
+    }
+
+    private String sharedKeyOf(Object key, String token) {
+        return "validated:"+fingerprintOf(key,token);
+    }
+
+    private OauthToken callBase(String token) throws OauthClientException {
+        boolean probe = breaker!=null && breaker.check(System.currentTimeMillis());
+        long start = System.nanoTime();
+        boolean success = false, limited = false;
+        try {
+            OauthToken t = base.validateToken(token);
+            success = true;
             return t;
-        } catch (ExecutionException e) {
-            // not unwrapping an exception to capture the call stack
-            throw new OauthClientException(e);
+        } catch (UpstreamLimitException e) {
+            // the server wasn't called, so this isn't its failure
+            limited = true;
+            throw e;
+        } finally {
+            if (limited) {
+                if (breaker!=null)
+                    breaker.cancel(probe);
+            } else {
+                metrics.recordLoad(success,System.nanoTime()-start);
+                if (breaker!=null)
+                    breaker.record(success,probe,System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Looks up the caches without going to {@link #base}.
+     *
+     * @return
+     *      {@link #INVALID} if the token is known to be invalid, null if we don't know.
+     *      The returned token may be expired but within the grace period, in which case
+     *      it should be revalidated.
+     */
+    private @CheckForNull CachedToken lookup(Object key, String token) {
+        if (negative.contains(key)) {
+            metrics.record(TokenMetrics.Event.NEGATIVE_HIT);
+            return INVALID;
+        }
+
+        metrics.recordExpirations(wheel.expire(System.currentTimeMillis()));
+
+        CachedToken c = cache.getIfPresent(key);
+        if (c!=null && c.isExpired() && !isWithinGrace(c)) {
+            // the wheel hasn't gotten to it yet
+            if (cache.asMap().remove(key,c))
+                metrics.recordExpirations(1);
+            c = null;
+        }
+        boolean stale = c!=null && isStale(c);
+        metrics.record(c==null ? TokenMetrics.Event.MISS : stale ? TokenMetrics.Event.STALE_HIT : TokenMetrics.Event.HIT);
+        if (c!=null && !stale && revalidator!=null)
+            revalidator.onHit(key,token,c,System.currentTimeMillis());
+        return c;
+    }
+
+    private boolean isWithinGrace(CachedToken c) {
+        return c.getExpiration()+staleGrace >= System.currentTimeMillis();
+    }
+
+    /**
+     * Is this an expired token that we have to revalidate?
+     * Tokens that have merely been trusted for too long are left to {@link #revalidator}.
+     */
+    private boolean isStale(CachedToken c) {
+        return c.isValid() && c.isExpired();
+    }
+
+    @Override
+    public OauthToken validateToken(String token) throws OauthClientException {
+        OauthTokenView v = validateTokenView(token);
+        return v!=null ? toOauthToken(v,token) : null;
+    }
+
+    /**
+     * Checks the scopes on the cached token, so that only the tokens that pass are copied.
+     */
+    @Override
+    public OauthToken validateToken(String token, String... scopes) throws OauthClientException {
+        OauthTokenView v = validateTokenView(token, scopes);
+        return v!=null ? toOauthToken(v,token) : null;
+    }
+
+    @Override
+    public OauthTokenView validateTokenView(String token) throws OauthClientException {
+        if (token==null)    return null;
+
+        Object key = keyOf(token);
+        CachedToken c = lookup(key,token);
+        if (c==null) {
+            c = flights.get(key,loader(key,token,false));
+        } else
+        if (isStale(c)) {
+            c = revalidateStale(key,token,c);
+        }
+        return usable(c);
+    }
+
+    /**
+     * Revalidates an expired token in {@link #executor}, and returns what to serve in the meantime,
+     * which is the expired token, unless the revalidation has already finished, as it does without an executor.
+     */
+    private CachedToken revalidateStale(Object key, String token, final CachedToken c) {
+        ListenableFuture<CachedToken> f = flights.load(key,loader(key,token,true),executor);
+        if (f.isDone()) {
+            try {
+                return Uninterruptibles.getUninterruptibly(f);
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Serving an expired token as it failed to revalidate", e);
+                return c;
+            }
         }
+        Futures.addCallback(f, new FutureCallback<CachedToken>() {
+            public void onSuccess(CachedToken result) {
+            }
+
+            public void onFailure(Throwable t) {
+                LOGGER.log(Level.FINE, "Failed to revalidate an expired token", t);
+            }
+        });
+        return c;
     }
+
+    /**
+     * Completes immediately for cache hits, including expired tokens within the grace period,
+     * which are revalidated in the background. Misses are validated in the executor given to
+     * {@link TokenCacheOptions#withExecutor(Executor)}, and concurrent misses of the same token,
+     * blocking or not, share the same validation.
+     */
+    @Override
+    public ListenableFuture<OauthToken> validateTokenAsync(final String token) {
+        if (token==null)    return Futures.immediateFuture(null);
+
+        Object key = keyOf(token);
+        CachedToken c = lookup(key,token);
+        if (c!=null) {
+            if (isStale(c))
+                c = revalidateStale(key,token,c);
+            return Futures.immediateFuture(copyOf(c,token));
+        }
+
+        ListenableFuture<CachedToken> f = flights.load(key,loader(key,token,false),executor);
+        return Futures.transform(f, new Function<CachedToken,OauthToken>() {
+            public OauthToken apply(CachedToken c) {
+                return copyOf(c,token);
+            }
+        });
+    }
+
+    private OauthToken copyOf(CachedToken c, String token) {
+        c = usable(c);
+        return c!=null ? toOauthToken(c,token) : null;
+    }
+
+    /**
+     * Returns the given token if it can be handed out to the caller, or null if it's invalid or
+     * expired beyond the grace period. A token without a lifetime is only ever fresh from {@link #base}.
+     */
+    private @CheckForNull CachedToken usable(CachedToken c) {
+        if (!c.isValid() || (c.hasLifetime() && c.isExpired() && !isWithinGrace(c)))
+            return null;
+        return c;
+    }
+
+    /**
+     * Answers the cache hits and starts loading the misses in {@link #executor} in one pass,
+     * then waits for all the loads at once.
+     */
+    @Override
+    public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+        Map<String,OauthToken> r = new LinkedHashMap<String,OauthToken>();
+        List<String> misses = new ArrayList<String>();
+        List<ListenableFuture<CachedToken>> futures = new ArrayList<ListenableFuture<CachedToken>>();
+
+        for (String token : tokens) {
+            if (token==null || r.containsKey(token))  continue;
+
+            Object key = keyOf(token);
+            CachedToken c = lookup(key,token);
+            if (c==null) {
+                r.put(token,null);     // reserve the spot to preserve the order
+                misses.add(token);
+                futures.add(flights.load(key,loader(key,token,false),executor));
+            } else {
+                if (isStale(c))
+                    c = revalidateStale(key,token,c);
+                r.put(token,copyOf(c,token));
+            }
+        }
+
+        for (int i=0; i<futures.size(); i++) {
+            String token = misses.get(i);
+            r.put(token,copyOf(SingleFlight.join(futures.get(i)),token));
+        }
+        return r;
+    }
+
+    /**
+     * Marker for tokens found in the negative cache.
+     */
+    private static final CachedToken INVALID = new CachedToken(null);
+
+    /**
+     * Granularity of the expiration, in milliseconds.
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * Number of slots in the wheel, so one revolution is a bit over 8 minutes.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * How often we look for tokens to revalidate, in milliseconds.
+     */
+    private static final long REVALIDATION_PERIOD = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(CachedTokenValidator.class.getName());
 }
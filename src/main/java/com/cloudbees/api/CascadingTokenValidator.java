@@ -2,32 +2,253 @@ package com.cloudbees.api;
 
 import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Asks {@code lhs} first, then {@code rhs} if {@code lhs} didn't know the token.
+ *
+ * <p>
+ * With a {@link TokenClassifier}, this also remembers the families of tokens that only {@code rhs} knows,
+ * and goes straight to {@code rhs} for them the next time. {@code lhs} is still consulted if {@code rhs}
+ * doesn't know the token after all.
+ *
  * @author Kohsuke Kawaguchi
  */
 class CascadingTokenValidator extends TokenValidator {
     private final TokenValidator lhs,rhs;
+    private final @CheckForNull TokenClassifier classifier;
+    /**
+     * Families of tokens that {@code rhs} validated. Null if we aren't remembering.
+     */
+    private final @CheckForNull Cache<Object,Boolean> routes;
 
     CascadingTokenValidator(TokenValidator lhs, TokenValidator rhs) {
+        this(lhs,rhs,null);
+    }
+
+    CascadingTokenValidator(TokenValidator lhs, TokenValidator rhs, @CheckForNull TokenClassifier classifier) {
         this.lhs = lhs;
         this.rhs = rhs;
+        this.classifier = classifier;
+        this.routes = classifier==null ? null : CacheBuilder.newBuilder()
+                .maximumSize(MAX_ROUTES)
+                .expireAfterWrite(1, TimeUnit.HOURS)
+                .<Object,Boolean>build();
+    }
+
+    private @CheckForNull Object routeOf(String token) {
+        return classifier==null || token==null ? null : classifier.classify(token);
+    }
+
+    /**
+     * Should we ask {@code rhs} first?
+     */
+    private boolean isRoutedRight(@CheckForNull Object route) {
+        return route!=null && routes.getIfPresent(route)!=null;
+    }
+
+    /**
+     * Remembers which validator knew the token.
+     */
+    private void learn(@CheckForNull Object route, boolean right) {
+        if (route==null)    return;
+        if (right)
+            routes.put(route,Boolean.TRUE);
+        else
+            routes.invalidate(route);
     }
 
     @Override
     public OauthToken validateToken(String token) throws OauthClientException {
+        Object route = routeOf(token);
+        boolean right = isRoutedRight(route);
+        TokenValidator first = right ? rhs : lhs;
+
         try {
-            OauthToken t = lhs.validateToken(token);
-            if (t!=null)
+            OauthToken t = first.validateToken(token);
+            if (t!=null) {
+                learn(route,right);
+                return t;
+            }
+        } catch (OauthClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to validate token with "+first,e);
+        }
+
+        OauthToken t = (right ? lhs : rhs).validateToken(token);
+        if (t!=null)
+            learn(route,!right);
+        return t;
+    }
+
+    @Override
+    public OauthTokenView validateTokenView(String token) throws OauthClientException {
+        Object route = routeOf(token);
+        boolean right = isRoutedRight(route);
+        TokenValidator first = right ? rhs : lhs;
+
+        try {
+            OauthTokenView t = first.validateTokenView(token);
+            if (t!=null) {
+                learn(route,right);
                 return t;
+            }
+        } catch (OauthClientException e) {
+            LOGGER.log(Level.WARNING, "Failed to validate token with "+first,e);
+        }
+
+        OauthTokenView t = (right ? lhs : rhs).validateTokenView(token);
+        if (t!=null)
+            learn(route,!right);
+        return t;
+    }
+
+    @Override
+    public ListenableFuture<OauthToken> validateTokenAsync(final String token) {
+        final Object route = routeOf(token);
+        final boolean right = isRoutedRight(route);
+        final TokenValidator first = right ? rhs : lhs;
+        final TokenValidator second = right ? lhs : rhs;
+
+        final SettableFuture<OauthToken> r = SettableFuture.create();
+        Futures.addCallback(first.validateTokenAsync(token), new FutureCallback<OauthToken>() {
+            public void onSuccess(OauthToken t) {
+                if (t!=null) {
+                    learn(route,right);
+                    r.set(t);
+                } else
+                    fallback();
+            }
+
+            public void onFailure(Throwable t) {
+                if (t instanceof OauthClientException) {
+                    LOGGER.log(Level.WARNING, "Failed to validate token with "+first,t);
+                    fallback();
+                } else {
+                    r.setException(t);
+                }
+            }
+
+            private void fallback() {
+                Futures.addCallback(second.validateTokenAsync(token), new FutureCallback<OauthToken>() {
+                    public void onSuccess(OauthToken t) {
+                        if (t!=null)
+                            learn(route,!right);
+                        r.set(t);
+                    }
+
+                    public void onFailure(Throwable t) {
+                        r.setException(t);
+                    }
+                });
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Validates the whole batch with {@code lhs}, then only what it rejected with {@code rhs}.
+     * Tokens routed to {@code rhs} are validated with {@code rhs} first, and only what it rejected
+     * joins the batch for {@code lhs}.
+     */
+    @Override
+    public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+        Map<String,OauthToken> r = new LinkedHashMap<String,OauthToken>();
+        List<String> left = new ArrayList<String>();
+        Set<String> right = new HashSet<String>();
+        for (String token : tokens) {
+            if (r.containsKey(token))   continue;
+            r.put(token,null);     // reserve the spot to preserve the order
+            if (isRoutedRight(routeOf(token)))
+                right.add(token);
+            else
+                left.add(token);
+        }
+
+        Map<String,OauthToken> m = tryValidateTokens(rhs,right);
+        for (String token : right) {
+            OauthToken t = m!=null ? m.get(token) : null;
+            if (t!=null)
+                r.put(token,t);
+            else
+                left.add(token);
+        }
+
+        m = tryValidateTokens(lhs,left);
+        List<String> rest = new ArrayList<String>();
+        for (String token : left) {
+            OauthToken t = m!=null ? m.get(token) : null;
+            if (t!=null) {
+                r.put(token,t);
+                learn(routeOf(token),false);
+            } else
+            if (!right.contains(token)) {
+                rest.add(token);
+            }
+        }
+
+        if (!rest.isEmpty()) {
+            for (Map.Entry<String,OauthToken> e : rhs.validateTokens(rest).entrySet()) {
+                r.put(e.getKey(),e.getValue());
+                if (e.getValue()!=null)
+                    learn(routeOf(e.getKey()),true);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Validates the tokens with the given validator, or returns null if it failed.
+     */
+    private @CheckForNull Map<String,OauthToken> tryValidateTokens(TokenValidator v, Collection<String> tokens) {
+        if (tokens.isEmpty())
+            return Collections.emptyMap();
+        try {
+            return v.validateTokens(tokens);
         } catch (OauthClientException e) {
-            LOGGER.log(Level.WARNING, "Failed to validate token with "+lhs,e);
+            LOGGER.log(Level.WARNING, "Failed to validate tokens with "+v,e);
+            return null;
         }
+    }
+
+    /**
+     * Number of token families we remember.
+     */
+    private static final int MAX_ROUTES = 16384;
 
-        return rhs.validateToken(token);
+    @Override
+    public void invalidate(String token) {
+        lhs.invalidate(token);
+        rhs.invalidate(token);
+    }
+
+    @Override
+    public void invalidateAccount(String account) {
+        lhs.invalidateAccount(account);
+        rhs.invalidateAccount(account);
+    }
+
+    @Override
+    public void invalidateScope(String scope) {
+        lhs.invalidateScope(scope);
+        rhs.invalidateScope(scope);
     }
 
     private static final Logger LOGGER = Logger.getLogger(CascadingTokenValidator.class.getName());
@@ -0,0 +1,111 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+
+/**
+ * Stops calling the OAuth server for a while after it keeps failing, so that callers fail fast
+ * instead of each waiting for a timeout, and a struggling server isn't kept under load.
+ *
+ * <p>
+ * After {@code threshold} consecutive failures, the circuit opens and all calls are rejected
+ * for the backoff period. Then one call is let through as a probe. If it succeeds, the circuit
+ * closes. If it fails, the circuit opens again with the backoff doubled, up to the maximum.
+ * Calls that were already in flight when the circuit opened don't move the backoff when they fail,
+ * so a burst of failures opens the circuit only once.
+ *
+ * <p>
+ * Usage:
+ * <pre>
+ * boolean probe = breaker.check(now);
+ * boolean success = false;
+ * try {
+ *     ... call the server ...
+ *     success = true;
+ * } finally {
+ *     breaker.record(success, probe, System.currentTimeMillis());
+ * }
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class CircuitBreaker {
+    private final int threshold;
+    private final long initialBackoff, maxBackoff;
+
+    /**
+     * Number of consecutive failures so far.
+     */
+    private int failures;
+    private long backoff;
+    /**
+     * When the circuit is open, the time at which a probe is allowed.
+     */
+    private long openUntil;
+    /**
+     * True while a probe is in progress.
+     */
+    private boolean probing;
+
+    /**
+     * @param initialBackoff
+     *      In milliseconds.
+     * @param maxBackoff
+     *      In milliseconds.
+     */
+    CircuitBreaker(int threshold, long initialBackoff, long maxBackoff) {
+        this.threshold = threshold;
+        this.initialBackoff = this.backoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Checks if a call can be made to the server.
+     *
+     * @return
+     *      true if the call is the probe of an open circuit.
+     * @throws OauthClientException
+     *      if the circuit is open.
+     */
+    synchronized boolean check(long now) throws OauthClientException {
+        if (failures<threshold)
+            return false;     // closed
+        if (now<openUntil || probing)
+            throw new OauthClientException("Not calling the OAuth server for "+(openUntil-now)+"ms after "+failures+" consecutive failures");
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Records the outcome of a call that {@link #check(long)} allowed.
+     *
+     * @param probe
+     *      What {@link #check(long)} returned for the call.
+     */
+    synchronized void record(boolean success, boolean probe, long now) {
+        if (probe)
+            probing = false;
+        if (success) {
+            failures = 0;
+            backoff = initialBackoff;
+        } else {
+            boolean open = failures>=threshold;
+            failures++;
+            if (open ? probe : failures>=threshold) {
+                openUntil = now+backoff;
+                backoff = Math.min(backoff*2, maxBackoff);
+            }
+        }
+    }
+
+    /**
+     * Records that a call {@link #check(long)} allowed never reached the server.
+     */
+    synchronized void cancel(boolean probe) {
+        if (probe)
+            probing = false;
+    }
+
+    synchronized boolean isOpen() {
+        return failures>=threshold;
+    }
+}
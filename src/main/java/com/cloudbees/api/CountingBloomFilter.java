@@ -0,0 +1,103 @@
+package com.cloudbees.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe counting Bloom filter, with 4-bit counters packed 16 to a long.
+ *
+ * <p>
+ * Unlike a plain Bloom filter, items can be removed, which lets this filter track the contents
+ * of a cache that evicts. Like a plain Bloom filter, {@link #mightContain(Object)} can return
+ * a false positive, but never a false negative, so a positive answer needs to be confirmed elsewhere.
+ *
+ * <p>
+ * The hashes are derived from {@link Object#hashCode()}, which {@link String} caches, so that a lookup
+ * doesn't need to look at the characters again.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class CountingBloomFilter {
+    private final AtomicLongArray counters;
+    /**
+     * Number of counters, which is a multiple of 16.
+     */
+    private final int size;
+    private final int hashes;
+
+    /**
+     * @param expectedItems
+     *      Number of items the filter should hold at a time with about 1% false positive rate.
+     */
+    CountingBloomFilter(int expectedItems) {
+        int words = Math.max(1, (expectedItems*COUNTERS_PER_ITEM+15)/16);
+        this.counters = new AtomicLongArray(words);
+        this.size = words*16;
+        this.hashes = HASHES;
+    }
+
+    void add(Object item) {
+        int h1 = item.hashCode(), h2 = spread(h1);
+        for (int i=0; i<hashes; i++)
+            increment(index(h1,h2,i));
+    }
+
+    void remove(Object item) {
+        int h1 = item.hashCode(), h2 = spread(h1);
+        for (int i=0; i<hashes; i++)
+            decrement(index(h1,h2,i));
+    }
+
+    boolean mightContain(Object item) {
+        int h1 = item.hashCode(), h2 = spread(h1);
+        for (int i=0; i<hashes; i++)
+            if (get(index(h1,h2,i))==0)
+                return false;
+        return true;
+    }
+
+    private int index(int h1, int h2, int i) {
+        return ((h1+i*h2) & Integer.MAX_VALUE) % size;
+    }
+
+    private int get(int idx) {
+        return (int)(counters.get(idx>>4) >>> shift(idx)) & MAX;
+    }
+
+    private void increment(int idx) {
+        int w = idx>>4, s = shift(idx);
+        while (true) {
+            long v = counters.get(w);
+            long c = (v>>>s) & MAX;
+            if (c==MAX)     return;     // saturated, so it sticks forever
+            if (counters.compareAndSet(w, v, v+(1L<<s)))
+                return;
+        }
+    }
+
+    private void decrement(int idx) {
+        int w = idx>>4, s = shift(idx);
+        while (true) {
+            long v = counters.get(w);
+            long c = (v>>>s) & MAX;
+            if (c==0 || c==MAX)     return;     // we lost track of saturated counters
+            if (counters.compareAndSet(w, v, v-(1L<<s)))
+                return;
+        }
+    }
+
+    private static int shift(int idx) {
+        return (idx&15)*4;
+    }
+
+    /**
+     * Derives the second hash for double hashing. Forced odd so that it's never 0.
+     */
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return (h ^ (h>>>16)) | 1;
+    }
+
+    private static final int MAX = 15;
+    private static final int HASHES = 5;
+    private static final int COUNTERS_PER_ITEM = 10;
+}
@@ -0,0 +1,128 @@
+package com.cloudbees.api;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timing wheel that removes entries from a {@link ConcurrentMap} once their own deadline passes.
+ *
+ * <p>
+ * Entries are bucketed into slots by their deadline, so that expiring them only requires
+ * looking at the slots whose time has come, as opposed to scanning the whole map.
+ * Deadlines further away than one revolution of the wheel stay in their slot until the
+ * revolution that matches.
+ *
+ * <p>
+ * There's no timer thread. Instead, callers of the map are expected to call {@link #expire(long)}
+ * as they go, which is cheap when the clock hasn't moved past the current tick.
+ *
+ * <p>
+ * Entries removed from the map some other way, such as by the eviction of the cache, should be
+ * {@linkplain Entry#cancel() cancelled}, so that the wheel doesn't hold on to them until their deadline.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ExpiryWheel<K,V> {
+    private final ConcurrentMap<K,V> map;
+    /**
+     * Length of one slot in milliseconds.
+     */
+    private final long tick;
+    private final Queue<Entry<K,V>>[] slots;
+    /**
+     * Last tick that has been fully processed.
+     */
+    private volatile long current;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    ExpiryWheel(ConcurrentMap<K,V> map, long tick, int size, long now) {
+        this.map = map;
+        this.tick = tick;
+        this.slots = new Queue[size];
+        for (int i=0; i<size; i++)
+            slots[i] = new ConcurrentLinkedQueue<Entry<K,V>>();
+        this.current = now/tick;
+    }
+
+    /**
+     * Arranges {@code key} to be removed from the map at {@code deadline}, provided that
+     * it's still mapped to {@code value} by then.
+     *
+     * @return
+     *      Handle to cancel the removal.
+     */
+    Entry<K,V> schedule(K key, V value, long deadline) {
+        long t = Math.max(deadline/tick, current+1);
+        Entry<K,V> e = new Entry<K,V>(key,value,t);
+        slot(t).add(e);
+        return e;
+    }
+
+    /**
+     * Removes all the entries whose deadline is at or before {@code now}.
+     *
+     * If another thread is already doing this, return immediately instead of waiting for it.
+     *
+     * @return
+     *      Number of entries removed from the map.
+     */
+    int expire(long now) {
+        long target = now/tick;
+        if (target<=current)    return 0; // nothing to do
+        if (!lock.tryLock())    return 0;
+        int n = 0;
+        try {
+            long from = current;
+            // if we fell behind by a revolution or more, one sweep of every slot catches everything
+            long to = Math.min(target, from+slots.length);
+            for (long t=from+1; t<=to; t++) {
+                for (Iterator<Entry<K,V>> itr = slot(t).iterator(); itr.hasNext(); ) {
+                    Entry<K,V> e = itr.next();
+                    K k = e.key;
+                    V v = e.value;
+                    if (k==null || v==null) {
+                        itr.remove();   // cancelled
+                    } else
+                    if (e.tick<=target) {
+                        itr.remove();
+                        if (map.remove(k,v))
+                            n++;
+                    }
+                }
+            }
+            current = target;
+        } finally {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    private Queue<Entry<K,V>> slot(long t) {
+        return slots[(int)(t%slots.length)];
+    }
+
+    static final class Entry<K,V> {
+        private volatile K key;
+        private volatile V value;
+        private final long tick;
+
+        Entry(K key, V value, long tick) {
+            this.key = key;
+            this.value = value;
+            this.tick = tick;
+        }
+
+        /**
+         * Drops the references to the entry, which is then skipped and thrown away
+         * the next time the wheel passes its slot.
+         */
+        void cancel() {
+            key = null;
+            value = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.cloudbees.api;
+
+/**
+ * Count-min sketch with 4-bit counters that estimates how often each key has been seen recently,
+ * which {@link TinyLfuCache} uses to decide which entries are worth keeping.
+ *
+ * <p>
+ * Each key is counted in 4 counters in different rows. The estimate is the smallest of them,
+ * so collisions can only overestimate. Once the number of increments reaches 10 times the capacity,
+ * all the counters are halved, so that the sketch follows the changes in popularity.
+ *
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class FrequencySketch {
+    /**
+     * Each long holds 16 counters.
+     */
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long capacity) {
+        int n = (int)Math.min(Math.max(capacity,16), 1<<24);
+        n = Integer.highestOneBit(n-1)<<1;
+        table = new long[n];
+        mask = n-1;
+        sampleSize = 10*n;
+    }
+
+    /**
+     * Estimated number of times the key has been seen recently, up to 15.
+     */
+    int frequency(Object key) {
+        int h = spread(key.hashCode());
+        int start = (h&3)<<2;
+        int f = 15;
+        for (int i=0; i<4; i++) {
+            long v = table[indexOf(h,i)];
+            f = Math.min(f, (int)((v>>>((start+i)<<2)) & 0xF));
+        }
+        return f;
+    }
+
+    void increment(Object key) {
+        int h = spread(key.hashCode());
+        int start = (h&3)<<2;
+        boolean added = false;
+        for (int i=0; i<4; i++) {
+            int idx = indexOf(h,i);
+            int shift = (start+i)<<2;
+            if (((table[idx]>>>shift) & 0xF) != 0xF) {
+                table[idx] += 1L<<shift;
+                added = true;
+            }
+        }
+        if (added && ++size==sampleSize)
+            reset();
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    private void reset() {
+        for (int i=0; i<table.length; i++)
+            table[i] = (table[i]>>>1) & 0x7777777777777777L;
+        size /= 2;
+    }
+
+    private int indexOf(int h, int row) {
+        long x = (h+SEEDS[row]) * SEEDS[row];
+        x += x>>>32;
+        return (int)x & mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x>>>16)^x) * 0x45d9f3b;
+        x = ((x>>>16)^x) * 0x45d9f3b;
+        return (x>>>16)^x;
+    }
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+}
@@ -0,0 +1,45 @@
+package com.cloudbees.api;
+
+import com.google.common.cache.Cache;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link CacheEngine} on top of a cache built from {@link com.google.common.cache.CacheBuilder}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class GuavaCacheEngine<K,V> implements CacheEngine<K,V> {
+    private final Cache<K,V> cache;
+
+    GuavaCacheEngine(Cache<K,V> cache) {
+        this.cache = cache;
+    }
+
+    public V getIfPresent(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(K key, V value) {
+        cache.put(key,value);
+    }
+
+    public void invalidate(Object key) {
+        cache.invalidate(key);
+    }
+
+    public ConcurrentMap<K,V> asMap() {
+        return cache.asMap();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Only counted if the cache records its stats.
+     */
+    public long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+}
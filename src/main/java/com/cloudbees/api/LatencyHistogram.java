@@ -0,0 +1,82 @@
+package com.cloudbees.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with log-linear buckets,
+ * which keeps the relative error of reported percentiles under 12.5%.
+ *
+ * <p>
+ * Each power of two is divided into 8 buckets, so a value is located with a few bit operations
+ * and recorded with a couple of atomic increments.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class LatencyHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0,nanos)));
+        count.incrementAndGet();
+    }
+
+    /**
+     * Number of values recorded so far.
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the value at the given percentile, in the given unit.
+     *
+     * @param percentile
+     *      Between 0 and 1, such as 0.99 for the 99th percentile.
+     * @return
+     *      -1 if nothing has been recorded yet.
+     */
+    long getPercentile(double percentile, TimeUnit unit) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i=0; i<BUCKETS; i++)
+            total += snapshot[i] = counts.get(i);
+        if (total==0)   return -1;
+
+        long target = Math.max(1, (long)Math.ceil(percentile*total));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen>=target)
+                return unit.convert(upperBoundOf(i), TimeUnit.NANOSECONDS);
+        }
+        return unit.convert(upperBoundOf(BUCKETS-1), TimeUnit.NANOSECONDS);
+    }
+
+    static int indexOf(long v) {
+        if (v<SUB)  return (int)v;
+        int msb = 63-Long.numberOfLeadingZeros(v);
+        int sub = (int)(v>>>(msb-SUB_BITS)) & (SUB-1);
+        return (msb-SUB_BITS+1)*SUB + sub;
+    }
+
+    /**
+     * Largest value that falls into the given bucket.
+     */
+    static long upperBoundOf(int idx) {
+        if (idx<SUB)    return idx;
+        int msb = idx/SUB + SUB_BITS - 1;
+        long sub = idx%SUB;
+        long lower = (1L<<msb) | (sub<<(msb-SUB_BITS));
+        return lower + (1L<<(msb-SUB_BITS)) - 1;
+    }
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1<<SUB_BITS;
+    private static final int BUCKETS = indexOf(Long.MAX_VALUE)+1;
+}
@@ -0,0 +1,49 @@
+package com.cloudbees.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SharedTokenStore} in the memory of this JVM.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see SharedTokenStore#loopback()
+ */
+final class LoopbackTokenStore extends SharedTokenStore {
+    private final Cache<String,Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(65536)
+            .build();
+
+    @Override
+    public byte[] get(String key) {
+        Entry e = entries.getIfPresent(key);
+        if (e==null)    return null;
+        if (e.expiration<System.currentTimeMillis()) {
+            entries.asMap().remove(key,e);
+            return null;
+        }
+        return e.value.clone();
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttl, TimeUnit unit) {
+        entries.put(key,new Entry(value.clone(),System.currentTimeMillis()+unit.toMillis(ttl)));
+    }
+
+    @Override
+    public void remove(String key) {
+        entries.invalidate(key);
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final long expiration;
+
+        Entry(byte[] value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.cloudbees.api;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers tokens that have failed validation, separately from the valid ones,
+ * so that a client spraying garbage tokens can't push real users out of the cache.
+ *
+ * <p>
+ * Optionally fronted by a {@link CountingBloomFilter}, so that the valid tokens,
+ * which are the majority, don't have to pay for a lookup here.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class NegativeCache {
+    private final Cache<Object,Boolean> cache;
+    private final @Nullable CountingBloomFilter filter;
+
+    NegativeCache(long ttl, int maximumSize, boolean useFilter) {
+        this.filter = useFilter ? new CountingBloomFilter(maximumSize) : null;
+        CacheBuilder<Object,Object> cb = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .maximumSize(maximumSize);
+        if (filter!=null) {
+            cb.removalListener(new RemovalListener<Object,Boolean>() {
+                public void onRemoval(RemovalNotification<Object,Boolean> n) {
+                    filter.remove(n.getKey());
+                }
+            });
+        }
+        this.cache = cb.build();
+    }
+
+    /**
+     * Is this token known to be invalid?
+     *
+     * @param token
+     *      Either the token itself or its {@link TokenFingerprint}.
+     */
+    boolean contains(Object token) {
+        if (filter!=null && !filter.mightContain(token))
+            return false;
+        return cache.getIfPresent(token)!=null;
+    }
+
+    /**
+     * Records that this token has failed validation.
+     */
+    void add(Object token) {
+        // add to the filter first, so that it never under-counts what's in the cache
+        if (filter!=null)
+            filter.add(token);
+        if (cache.asMap().putIfAbsent(token,Boolean.TRUE)!=null && filter!=null)
+            filter.remove(token);
+    }
+}
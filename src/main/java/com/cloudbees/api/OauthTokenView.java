@@ -0,0 +1,45 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthToken;
+
+/**
+ * Read-only view of a validated {@link OauthToken}.
+ *
+ * <p>
+ * Unlike {@link OauthToken}, a view can be shared between callers, so a cached {@link TokenValidator}
+ * can return the same instance for every hit instead of copying the token each time.
+ * Use {@link #toOauthToken()} if you need an {@link OauthToken} that you can modify.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see TokenValidator#validateTokenView(String)
+ */
+public interface OauthTokenView {
+    /**
+     * The access token itself, or null if the cache is configured not to retain it.
+     *
+     * @see TokenCacheOptions#withFingerprintKeys(boolean)
+     */
+    String getAccessToken();
+
+    /**
+     * The account that the token belongs to.
+     */
+    String getAccount();
+
+    /**
+     * Number of seconds remaining until this token expires, as of now.
+     */
+    int getExpiresIn();
+
+    boolean isExpired();
+
+    /**
+     * @see OauthToken#validateScopes(String...)
+     */
+    boolean validateScopes(String... scopes);
+
+    /**
+     * Creates a new {@link OauthToken} that the caller owns, with its expiration set as of now.
+     */
+    OauthToken toOauthToken();
+}
@@ -0,0 +1,75 @@
+package com.cloudbees.api;
+
+/**
+ * Snapshot of what the cache partitioned by {@link TokenCacheOptions#withAccountPartitions(long, long, long)}
+ * holds for one account, and how well it's doing.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see TokenMetrics#getPartitionStats()
+ */
+public final class PartitionStats {
+    private final String account;
+    private final long size, hitCount, missCount, evictionCount;
+
+    PartitionStats(String account, long size, long hitCount, long missCount, long evictionCount) {
+        this.account = account;
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * Account the tokens belong to, or the empty string for tokens without an account.
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Number of tokens of this account in the cache.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Number of tokens of this account that had to be validated, since which account a token belongs to
+     * is only known after it's validated.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Number of tokens of this account evicted to make room.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Fraction of the lookups answered from the cache, or NaN if there hasn't been any.
+     */
+    public double getHitRate() {
+        long total = hitCount+missCount;
+        return total==0 ? Double.NaN : (double)hitCount/total;
+    }
+
+    /**
+     * Adds up the numbers of the same account from another cache.
+     */
+    /*package*/ PartitionStats plus(PartitionStats that) {
+        return new PartitionStats(account, size+that.size, hitCount+that.hitCount,
+                missCount+that.missCount, evictionCount+that.evictionCount);
+    }
+
+    @Override
+    public String toString() {
+        return account+"[size="+size+",hits="+hitCount+",misses="+missCount+",evictions="+evictionCount+"]";
+    }
+}
@@ -0,0 +1,406 @@
+package com.cloudbees.api;
+
+import com.google.common.base.Function;
+
+import javax.annotation.CheckForNull;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded cache whose entries are divided into partitions, such as by accounts,
+ * so that one partition can't push all the others out.
+ *
+ * <p>
+ * Each partition is guaranteed a minimum number of entries, and it can grow up to a cap
+ * by borrowing what other partitions don't use. When the cache is full, a partition above its
+ * minimum makes room by evicting its own least recently used entry. A partition below its minimum
+ * takes the room from the partition that borrows the most. So the eviction pressure stays
+ * with the partition that causes it. The minimum is only guaranteed as long as the active partitions
+ * don't add up to more than the whole cache.
+ *
+ * <p>
+ * Reads don't take the lock of the cache. They move the entry to the head of its partition's LRU list
+ * if the lock of the partition is free, and skip that otherwise. Writes take the lock of the cache.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class PartitionedCache<K,V> implements CacheEngine<K,V> {
+    private final ConcurrentHashMap<K,Node<K,V>> data = new ConcurrentHashMap<K,Node<K,V>>();
+    private final ConcurrentHashMap<String,Partition<K,V>> partitions = new ConcurrentHashMap<String,Partition<K,V>>();
+    private final long maximumSize, minimumShare, maximumShare;
+    private final Function<? super V,String> partitioner;
+    private final @CheckForNull CacheRemovalListener<K,V> listener;
+
+    /**
+     * Guards all the writes.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AsMap asMap = new AsMap();
+
+    /**
+     * @param partitioner
+     *      Determines the partition of an entry. Null is the same as the empty string.
+     */
+    PartitionedCache(long maximumSize, long minimumShare, long maximumShare, Function<? super V,String> partitioner,
+                     @CheckForNull CacheRemovalListener<K,V> listener) {
+        this.maximumSize = maximumSize;
+        this.minimumShare = minimumShare;
+        this.maximumShare = maximumShare;
+        this.partitioner = partitioner;
+        this.listener = listener;
+    }
+
+    public V getIfPresent(K key) {
+        Node<K,V> e = data.get(key);
+        if (e==null)    return null;
+        e.partition.onHit(e);
+        return e.value;
+    }
+
+    public void put(K key, V value) {
+        asMap.put(key,value);
+    }
+
+    public void invalidate(Object key) {
+        asMap.remove(key);
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public ConcurrentMap<K,V> asMap() {
+        return asMap;
+    }
+
+    /**
+     * Snapshot of each partition that has entries.
+     */
+    List<PartitionStats> getPartitionStats() {
+        List<PartitionStats> r = new ArrayList<PartitionStats>();
+        for (Partition<K,V> p : partitions.values())
+            r.add(new PartitionStats(p.name, p.size, p.hits.get(), p.misses.get(), p.evictions.get()));
+        return r;
+    }
+
+    /**
+     * Puts a new entry in place of {@code old}, if it's still there.
+     *
+     * @param old
+     *      null to put only if there's no entry, or {@link #ANY} to put unconditionally.
+     * @return
+     *      The entry that was replaced, or null. If {@code old} didn't match, the current entry, which is left alone.
+     */
+    private @CheckForNull Node<K,V> write(K key, V value, @CheckForNull Node<K,V> old) {
+        List<Node<K,V>> removed = new ArrayList<Node<K,V>>();
+        Node<K,V> cur;
+        lock.lock();
+        try {
+            cur = data.get(key);
+            if (old!=ANY && cur!=old)
+                return cur;
+
+            String name = partitioner.apply(value);
+            if (name==null) name = "";
+            Partition<K,V> p = partitions.get(name);
+            if (p==null)
+                partitions.put(name, p=new Partition<K,V>(name));
+
+            if (cur!=null) {
+                unlink(cur);
+                removed.add(cur);
+            } else {
+                p.misses.incrementAndGet();
+            }
+            Node<K,V> e = new Node<K,V>(key,value,p);
+            data.put(key,e);
+            p.add(e);
+            if (p.size==1)
+                partitions.put(name,p);     // it might have been dropped while it was emptied by unlink(cur)
+
+            evict(p,removed);
+        } finally {
+            lock.unlock();
+        }
+        notify(removed);
+        return cur;
+    }
+
+    /**
+     * Removes the entry if it's still there.
+     */
+    private boolean remove(Node<K,V> e) {
+        lock.lock();
+        try {
+            if (data.get(e.key)!=e)
+                return false;
+            unlink(e);
+        } finally {
+            lock.unlock();
+        }
+        notify(e);
+        return true;
+    }
+
+    private void notify(List<Node<K,V>> entries) {
+        for (Node<K,V> e : entries)
+            notify(e);
+    }
+
+    private void notify(Node<K,V> e) {
+        if (listener==null) return;
+        try {
+            listener.onRemoval(e.key,e.value);
+        } catch (RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Removal listener "+listener+" failed", x);
+        }
+    }
+
+    // all the methods below require the lock
+
+    private void unlink(Node<K,V> e) {
+        data.remove(e.key,e);
+        Partition<K,V> p = e.partition;
+        p.remove(e);
+        if (p.size==0)
+            partitions.remove(p.name,p);
+    }
+
+    /**
+     * Evicts entries until {@code p} is within its cap and the cache is within its size.
+     */
+    private void evict(Partition<K,V> p, List<Node<K,V>> removed) {
+        while (p.size>maximumShare)
+            removed.add(evictFrom(p));
+
+        while (data.size()>maximumSize) {
+            Partition<K,V> victim = p.size>minimumShare ? p : findLargest(minimumShare);
+            if (victim==null)
+                victim = findLargest(0);    // everyone is within the minimum, which can't be guaranteed then
+            removed.add(evictFrom(victim));
+        }
+    }
+
+    /**
+     * Finds the largest partition that has more entries than the given number.
+     */
+    private @CheckForNull Partition<K,V> findLargest(long floor) {
+        Partition<K,V> r = null;
+        for (Partition<K,V> p : partitions.values()) {
+            if (p.size>floor && (r==null || p.size>r.size))
+                r = p;
+        }
+        return r;
+    }
+
+    private Node<K,V> evictFrom(Partition<K,V> p) {
+        Node<K,V> e = p.eldest();
+        unlink(e);
+        evictions.incrementAndGet();
+        p.evictions.incrementAndGet();
+        return e;
+    }
+
+    private static final class Node<K,V> {
+        final K key;
+        final V value;
+        final Partition<K,V> partition;
+
+        Node(K key, V value, Partition<K,V> partition) {
+            this.key = key;
+            this.value = value;
+            this.partition = partition;
+        }
+    }
+
+    private static final class Partition<K,V> {
+        final String name;
+        /**
+         * Entries from the least recently used to the most, guarded by {@link #lock}.
+         */
+        private final LinkedHashMap<K,Node<K,V>> lru = new LinkedHashMap<K,Node<K,V>>(16,0.75f,true);
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * Only modified with the lock of the cache.
+         */
+        volatile int size;
+        final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+        Partition(String name) {
+            this.name = name;
+        }
+
+        void onHit(Node<K,V> e) {
+            hits.incrementAndGet();
+            if (lock.tryLock()) {
+                try {
+                    lru.get(e.key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        void add(Node<K,V> e) {
+            lock.lock();
+            try {
+                lru.put(e.key,e);
+                size = lru.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(Node<K,V> e) {
+            lock.lock();
+            try {
+                if (lru.get(e.key)==e)
+                    lru.remove(e.key);
+                size = lru.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Node<K,V> eldest() {
+            lock.lock();
+            try {
+                return lru.values().iterator().next();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Map view that goes through the partitions, as the cached validator
+     * goes through it to remove and expire entries.
+     */
+    private final class AsMap extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+        @Override
+        public V get(Object key) {
+            Node<K,V> e = data.get(key);
+            return e==null ? null : e.value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public V put(K key, V value) {
+            return valueOf(write(key,value,any()));
+        }
+
+        public V putIfAbsent(K key, V value) {
+            return valueOf(write(key,value,null));
+        }
+
+        @Override
+        public V remove(Object key) {
+            for (Node<K,V> e=data.get(key); e!=null; e=data.get(key)) {
+                if (PartitionedCache.this.remove(e))
+                    return e.value;
+            }
+            return null;
+        }
+
+        public boolean remove(Object key, Object value) {
+            Node<K,V> e = data.get(key);
+            return e!=null && e.value.equals(value) && PartitionedCache.this.remove(e);
+        }
+
+        public boolean replace(K key, V oldValue, V newValue) {
+            Node<K,V> e = data.get(key);
+            return e!=null && e.value.equals(oldValue) && write(key,newValue,e)==e;
+        }
+
+        public V replace(K key, V value) {
+            for (Node<K,V> e=data.get(key); e!=null; e=data.get(key)) {
+                if (write(key,value,e)==e)
+                    return e.value;
+            }
+            return null;
+        }
+
+        @Override
+        public void clear() {
+            for (K key : data.keySet())
+                remove(key);
+        }
+
+        private V valueOf(Node<K,V> e) {
+            return e==null ? null : e.value;
+        }
+
+        @Override
+        public Set<Map.Entry<K,V>> entrySet() {
+            return new AbstractSet<Map.Entry<K,V>>() {
+                @Override
+                public Iterator<Map.Entry<K,V>> iterator() {
+                    final Iterator<Node<K,V>> itr = data.values().iterator();
+                    return new Iterator<Map.Entry<K,V>>() {
+                        private Node<K,V> last;
+
+                        public boolean hasNext() {
+                            return itr.hasNext();
+                        }
+
+                        public Map.Entry<K,V> next() {
+                            last = itr.next();
+                            return new SimpleImmutableEntry<K,V>(last.key,last.value);
+                        }
+
+                        public void remove() {
+                            if (last==null)  throw new IllegalStateException();
+                            PartitionedCache.this.remove(last);
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return data.size();
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<K,V> any() {
+        return (Node<K,V>)ANY;
+    }
+
+    /**
+     * Marker for {@link #write(Object, Object, Node)} to put unconditionally.
+     */
+    private static final Node<?,?> ANY = new Node<Object,Object>(null,null,null);
+
+    private static final Logger LOGGER = Logger.getLogger(PartitionedCache.class.getName());
+}
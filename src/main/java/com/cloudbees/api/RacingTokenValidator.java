@@ -0,0 +1,187 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link TokenValidator} that asks two validators at the same time and takes the first non-null answer,
+ * as opposed to {@link CascadingTokenValidator} that asks one after another.
+ *
+ * <p>
+ * In the hedged mode, {@code rhs} is only asked if {@code lhs} hasn't answered within
+ * the given percentile of its recent latencies, so that the extra load stays proportional
+ * to the slow tail of {@code lhs}. Until enough latencies are observed, this works like
+ * {@link CascadingTokenValidator}.
+ *
+ * <p>
+ * Whichever call hasn't started when the answer is found gets cancelled, but a call that's already running is left
+ * to finish and its answer is ignored, since it might be a load that other callers of a cached validator are waiting on.
+ * The call to {@code lhs} that lost counts as a latency of at least the hedging delay, or else the delay wouldn't grow
+ * when {@code lhs} slows down.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+class RacingTokenValidator extends TokenValidator {
+    private final TokenValidator lhs,rhs;
+    private final ExecutorService executor;
+    /**
+     * Percentile of the {@code lhs} latency after which {@code rhs} is asked, or 0 to ask both right away.
+     */
+    private final double percentile;
+
+    /**
+     * Latencies of {@code lhs} being recorded, and the last full window of them.
+     * Rotated so that the hedging delay follows the changes in the latency.
+     */
+    private volatile LatencyHistogram current = new LatencyHistogram(), previous;
+
+    RacingTokenValidator(TokenValidator lhs, TokenValidator rhs, ExecutorService executor, double percentile) {
+        this.lhs = lhs;
+        this.rhs = rhs;
+        this.executor = executor;
+        this.percentile = percentile;
+    }
+
+    @Override
+    public OauthToken validateToken(final String token) throws OauthClientException {
+        CompletionService<OauthToken> cs = new ExecutorCompletionService<OauthToken>(executor);
+        final long start = System.nanoTime();
+        // the latency of lhs is recorded once, either when it answers or when it's cancelled
+        final AtomicBoolean recorded = new AtomicBoolean();
+        Future<OauthToken> l = cs.submit(new Callable<OauthToken>() {
+            public OauthToken call() throws Exception {
+                try {
+                    return lhs.validateToken(token);
+                } finally {
+                    if (recorded.compareAndSet(false,true))
+                        record(System.nanoTime()-start);
+                }
+            }
+        });
+        Future<OauthToken> r = null;
+        long delay = 0;
+
+        try {
+            if (percentile>0) {
+                delay = hedgeDelay();
+                Future<OauthToken> f = delay<0 ? cs.take() : cs.poll(delay, TimeUnit.NANOSECONDS);
+                if (f!=null) {
+                    // lhs has answered in time
+                    OauthToken t = getLhs(f);
+                    if (t!=null)
+                        return t;
+                    return rhs.validateToken(token);
+                }
+            }
+
+            r = cs.submit(new Callable<OauthToken>() {
+                public OauthToken call() throws Exception {
+                    return rhs.validateToken(token);
+                }
+            });
+
+            ExecutionException rhsFailure = null;
+            for (int i=0; i<2; i++) {
+                Future<OauthToken> f = cs.take();
+                if (f==l) {
+                    OauthToken t = getLhs(f);
+                    if (t!=null)    return t;
+                } else {
+                    try {
+                        OauthToken t = f.get();
+                        if (t!=null)    return t;
+                    } catch (ExecutionException e) {
+                        rhsFailure = e;
+                    }
+                }
+            }
+            if (rhsFailure!=null)
+                // not unwrapping an exception to capture the call stack
+                throw new OauthClientException(rhsFailure);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OauthClientException("Interrupted while validating a token",e);
+        } finally {
+            if (l.cancel(false) && recorded.compareAndSet(false,true))
+                record(Math.max(System.nanoTime()-start, delay));
+            if (r!=null)
+                r.cancel(false);
+        }
+    }
+
+    /**
+     * Gets the answer of {@code lhs}, treating a failure as null just like {@link CascadingTokenValidator} does.
+     */
+    private OauthToken getLhs(Future<OauthToken> f) throws InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to validate token with "+lhs,e.getCause());
+            return null;
+        }
+    }
+
+    private void record(long nanos) {
+        LatencyHistogram h = current;
+        h.record(nanos);
+        if (h.getCount()>=WINDOW && current==h) {
+            previous = h;
+            current = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * How long to wait for {@code lhs} before asking {@code rhs}, in nanoseconds, or -1 to wait until it answers.
+     */
+    private long hedgeDelay() {
+        LatencyHistogram h = previous;
+        if (h==null) {
+            h = current;
+            if (h.getCount()<MIN_SAMPLES)
+                return -1;
+        }
+        return h.getPercentile(percentile, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Number of latencies in one window.
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * Number of latencies needed before we start hedging.
+     */
+    private static final int MIN_SAMPLES = 32;
+
+    @Override
+    public void invalidate(String token) {
+        lhs.invalidate(token);
+        rhs.invalidate(token);
+    }
+
+    @Override
+    public void invalidateAccount(String account) {
+        lhs.invalidateAccount(account);
+        rhs.invalidateAccount(account);
+    }
+
+    @Override
+    public void invalidateScope(String scope) {
+        lhs.invalidateScope(scope);
+        rhs.invalidateScope(scope);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RacingTokenValidator.class.getName());
+}
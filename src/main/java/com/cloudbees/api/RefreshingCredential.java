@@ -0,0 +1,186 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.cr.Credential;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Credential} that keeps its current token at hand, and replaces it from the background
+ * before it expires, so that authorizing a request is just a read of {@link #current} and a look at the clock.
+ *
+ * <p>
+ * The token is created upon the first request. Then it's refreshed halfway through its remaining lifetime.
+ * If the refresh fails, it's retried until the token expires, and the next request
+ * creates a token synchronously.
+ *
+ * <p>
+ * Tokens without a lifetime ({@code expires_in} of 0) can't be kept, so while the generator
+ * returns such tokens, every request creates its own, like {@link TokenGenerator#asCredential(TokenRequest)} does.
+ *
+ * <p>
+ * The scheduled refresh only holds this credential weakly, so a credential that's no longer used
+ * doesn't keep refreshing tokens forever.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class RefreshingCredential extends Credential {
+    private final TokenGenerator generator;
+    private final TokenRequest request;
+    private final ScheduledExecutorService scheduler;
+    private final WeakReference<RefreshingCredential> self = new WeakReference<RefreshingCredential>(this);
+
+    /**
+     * Null until the first request.
+     */
+    private final AtomicReference<Current> current = new AtomicReference<Current>();
+    /**
+     * True if the last token created came without a lifetime.
+     */
+    private volatile boolean noLifetime;
+
+    RefreshingCredential(TokenGenerator generator, TokenRequest request, ScheduledExecutorService scheduler) {
+        this.generator = generator;
+        this.request = request;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void authorizeRequest(HttpURLConnection con) throws IOException {
+        Current c = current.get();
+        if (c==null || c.isExpired()) {
+            if (noLifetime) {
+                // no point in serializing the requests on refreshNow()
+                c = create();
+                noLifetime = !c.hasLifetime();
+            } else
+                c = refreshNow();
+        }
+        c.credential.authorizeRequest(con);
+    }
+
+    private synchronized Current refreshNow() throws IOException {
+        Current c = current.get();
+        if (c!=null && !c.isExpired())
+            return c;   // somebody else just did it
+
+        c = create();
+        if (!c.hasLifetime()) {
+            noLifetime = true;
+            return c;
+        }
+        current.set(c);
+        schedule(c, c.getRemaining()/2);
+        return c;
+    }
+
+    private Current create() throws IOException {
+        try {
+            return new Current(generator.createToken(request));
+        } catch (OauthClientException e) {
+            throw (IOException)new IOException("Failed to authenticate the request").initCause(e);
+        }
+    }
+
+    /**
+     * Replaces the given token unless it's already been replaced.
+     */
+    private void refresh(Current old) {
+        if (current.get()!=old)     return;
+        try {
+            Current c = new Current(generator.createToken(request));
+            if (!c.hasLifetime()) {
+                // the old one is used until it expires, and then requests create their own
+                noLifetime = true;
+                return;
+            }
+            if (current.compareAndSet(old,c))
+                schedule(c, c.getRemaining()/2);
+        } catch (OauthClientException e) {
+            retry(old,e);
+        } catch (RuntimeException e) {
+            retry(old,e);
+        }
+    }
+
+    private void retry(Current old, Exception e) {
+        long remaining = old.getRemaining();
+        LOGGER.log(Level.WARNING, "Failed to refresh the token for "+request+". "+remaining+"ms left", e);
+        if (remaining>0)
+            schedule(old, Math.min(RETRY_INTERVAL,remaining/2));
+    }
+
+    private void schedule(Current c, long delay) {
+        try {
+            scheduler.schedule(new Refresh(self,c), Math.max(delay,MIN_DELAY), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down. tokens will be created as requests find them expired
+            LOGGER.log(Level.FINE, "Failed to schedule a refresh of the token for "+request, e);
+        }
+    }
+
+    /**
+     * Token and the credential made from it.
+     */
+    private static final class Current {
+        final Credential credential;
+        /**
+         * Time in milliseconds since the epoch.
+         */
+        final long expiration;
+
+        final boolean lifetime;
+
+        Current(OauthToken token) {
+            this.credential = token.asCredential();
+            this.expiration = System.currentTimeMillis()+TimeUnit.SECONDS.toMillis(token.getExpiresIn());
+            this.lifetime = token.getExpiresIn()>0;
+        }
+
+        boolean hasLifetime() {
+            return lifetime;
+        }
+
+        long getRemaining() {
+            return expiration-System.currentTimeMillis();
+        }
+
+        boolean isExpired() {
+            return expiration<System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Scheduled refresh, which doesn't keep the credential from being garbage collected.
+     */
+    private static final class Refresh implements Runnable {
+        private final WeakReference<RefreshingCredential> credential;
+        private final Current old;
+
+        Refresh(WeakReference<RefreshingCredential> credential, Current old) {
+            this.credential = credential;
+            this.old = old;
+        }
+
+        public void run() {
+            RefreshingCredential c = credential.get();
+            if (c!=null)
+                c.refresh(old);
+        }
+    }
+
+    private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final long MIN_DELAY = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshingCredential.class.getName());
+}
@@ -0,0 +1,125 @@
+package com.cloudbees.api;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of cached tokens that have been trusted for too long and should be validated again
+ * in the background, so that a revoked token stops working within a bounded time.
+ *
+ * <p>
+ * A token is queued when it's used after {@code maxStaleness} since it was validated.
+ * The queue is drained at a capped rate, most used tokens first. Tokens stay in the cache and keep
+ * being served until they get their turn, however long that takes.
+ *
+ * <p>
+ * The queue holds about as many tokens as can be revalidated within {@code maxStaleness}.
+ * When it's full, a token isn't queued, and tries again the next time it's used. Tokens that have left
+ * the cache in the meantime are dropped as they come up.
+ *
+ * <p>
+ * Queued tokens are held as they are, since they have to be sent to the server again,
+ * even if the cache itself is keyed by fingerprints.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class Revalidator {
+    private final long maxStaleness;
+    private final double maxPerSecond;
+    private final int capacity;
+
+    /**
+     * Most used tokens first. Guarded by {@code this}.
+     */
+    private final PriorityQueue<Revalidation> queue = new PriorityQueue<Revalidation>(16, BY_HITS);
+
+    /**
+     * Revalidations allowed but not yet used, carried over from the previous {@link #poll(long, Map)}.
+     */
+    private double budget;
+    private long lastPoll = System.currentTimeMillis();
+
+    /**
+     * @param maxStaleness
+     *      In milliseconds.
+     */
+    Revalidator(long maxStaleness, double maxPerSecond) {
+        this.maxStaleness = maxStaleness;
+        this.maxPerSecond = maxPerSecond;
+        this.capacity = (int)Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, maxPerSecond*maxStaleness/1000));
+    }
+
+    /**
+     * Called for each cache hit, and queues the token if it's due for revalidation.
+     *
+     * @param token
+     *      Needed to validate the token again, since the cache may not have it.
+     */
+    void onHit(Object key, String token, CachedToken c, long now) {
+        c.recordHit();
+        if (c.getValidatedAt()+maxStaleness < now && c.startRefresh()) {
+            boolean queued;
+            synchronized (this) {
+                queued = queue.size()<capacity && queue.add(new Revalidation(key,token,c));
+            }
+            if (!queued)
+                c.refreshFailed();  // so that the next hit tries again
+        }
+    }
+
+    /**
+     * Takes the tokens to revalidate now, as many as the rate allows, most used first.
+     * The rest stay in the queue.
+     *
+     * @param cache
+     *      Tokens that are no longer in here are dropped.
+     */
+    synchronized List<Revalidation> poll(long now, Map<Object,CachedToken> cache) {
+        budget = Math.min(budget+(now-lastPoll)*maxPerSecond/1000, Math.max(maxPerSecond,1));
+        lastPoll = now;
+
+        List<Revalidation> r = new ArrayList<Revalidation>();
+        while (r.size()<(int)budget) {
+            Revalidation v = queue.poll();
+            if (v==null)    break;
+            if (cache.get(v.key)==v.cached)
+                r.add(v);
+        }
+        budget -= r.size();
+        return r;
+    }
+
+    /*package*/ synchronized int size() {
+        return queue.size();
+    }
+
+    static final class Revalidation {
+        final Object key;
+        final String token;
+        final CachedToken cached;
+        /**
+         * Hits when queued, which orders the queue.
+         */
+        final int hits;
+
+        Revalidation(Object key, String token, CachedToken cached) {
+            this.key = key;
+            this.token = token;
+            this.cached = cached;
+            this.hits = cached.getHits();
+        }
+    }
+
+    private static final Comparator<Revalidation> BY_HITS = new Comparator<Revalidation>() {
+        public int compare(Revalidation x, Revalidation y) {
+            int a = x.hits, b = y.hits;
+            return a<b ? 1 : a==b ? 0 : -1;
+        }
+    };
+
+    private static final int MIN_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 65536;
+}
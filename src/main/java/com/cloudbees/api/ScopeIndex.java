@@ -0,0 +1,54 @@
+package com.cloudbees.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns scope strings into bit positions, so that a set of scopes can be represented as a long.
+ *
+ * <p>
+ * A JVM typically only ever sees a handful of distinct scopes, so the first 64 scopes get a bit,
+ * and the rest are left to the slow path.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class ScopeIndex {
+    private ScopeIndex() {}
+
+    private static final ConcurrentMap<String,Long> BITS = new ConcurrentHashMap<String,Long>();
+    private static final AtomicInteger NEXT = new AtomicInteger();
+
+    /**
+     * Returns the bit assigned to the given scope, or 0 if we ran out of bits.
+     */
+    static long bitOf(String scope) {
+        Long b = BITS.get(scope);
+        if (b!=null)    return b;
+
+        if (NEXT.get()>=64)    return 0;
+        synchronized (BITS) {
+            b = BITS.get(scope);
+            if (b!=null)    return b;
+            int n = NEXT.get();
+            if (n>=64)     return 0;
+            b = 1L<<n;
+            BITS.put(scope,b);
+            NEXT.set(n+1);
+            return b;
+        }
+    }
+
+    /**
+     * Returns the bits of all the given scopes, or 0 if any of them doesn't have a bit.
+     */
+    static long maskOf(String... scopes) {
+        long m = 0;
+        for (String s : scopes) {
+            long b = bitOf(s);
+            if (b==0)   return 0;
+            m |= b;
+        }
+        return m;
+    }
+}
@@ -0,0 +1,57 @@
+package com.cloudbees.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent multimap from a name, such as an account or a scope, to the cache keys of the tokens
+ * that have it, so that those tokens can be found without going through the whole cache.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class SecondaryIndex {
+    private final ConcurrentMap<String,Set<Object>> index = new ConcurrentHashMap<String,Set<Object>>();
+
+    void add(String name, Object key) {
+        while (true) {
+            Set<Object> s = index.get(name);
+            if (s==null) {
+                Set<Object> n = Collections.newSetFromMap(new ConcurrentHashMap<Object,Boolean>());
+                s = index.putIfAbsent(name,n);
+                if (s==null)    s = n;
+            }
+            s.add(key);
+            if (index.get(name)==s)
+                return;
+            // the set was dropped by remove() as it became empty, so try again with a new one
+        }
+    }
+
+    void remove(String name, Object key) {
+        Set<Object> s = index.get(name);
+        if (s==null)    return;
+        s.remove(key);
+        if (s.isEmpty())
+            index.remove(name,s);
+    }
+
+    /**
+     * Returns a copy of the keys indexed under the given name.
+     */
+    Collection<Object> get(String name) {
+        Set<Object> s = index.get(name);
+        if (s==null)    return Collections.emptyList();
+        return new ArrayList<Object>(s);
+    }
+
+    /**
+     * Number of names in this index.
+     */
+    int size() {
+        return index.size();
+    }
+}
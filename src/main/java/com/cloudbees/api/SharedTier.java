@@ -0,0 +1,106 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthToken;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Talks to {@link SharedTokenStore} on behalf of the caches, reading synchronously
+ * and writing asynchronously, and keeping its failures from reaching the callers.
+ *
+ * <p>
+ * Tokens are only stored until they expire, so tokens without an expiry ({@code expires_in} of 0)
+ * are never shared.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class SharedTier {
+    private final SharedTokenStore store;
+    private final Executor writer;
+
+    SharedTier(SharedTokenStore store, Executor writer) {
+        this.store = store;
+        this.writer = writer;
+    }
+
+    /**
+     * @param accessToken
+     *      If non-null, set to the retrieved token.
+     * @return
+     *      null if the store doesn't have an unexpired token, or if it failed.
+     */
+    @CheckForNull CachedToken get(String key, @CheckForNull String accessToken) {
+        try {
+            byte[] data = store.get(key);
+            if (data==null)     return null;
+            CachedToken c = TokenCodec.decode(data,accessToken);
+            return c.isExpired() ? null : c;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read "+key+" from "+store, e);
+            return null;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read "+key+" from "+store, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the token in the background until it expires.
+     * Nothing is stored if it has already expired by then, including when it has no expiry.
+     */
+    void put(final String key, OauthToken t, final long expiration) {
+        final byte[] data;
+        try {
+            data = TokenCodec.encode(t,expiration);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to encode "+key, e);
+            return;
+        }
+
+        write(key, new Callable<Void>() {
+            public Void call() throws IOException {
+                long ttl = expiration-System.currentTimeMillis();
+                if (ttl>0)
+                    store.put(key,data,ttl,TimeUnit.MILLISECONDS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Removes the token in the background.
+     */
+    void remove(final String key) {
+        write(key, new Callable<Void>() {
+            public Void call() throws IOException {
+                store.remove(key);
+                return null;
+            }
+        });
+    }
+
+    private void write(final String key, final Callable<Void> op) {
+        try {
+            writer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        op.call();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to update "+key+" in "+store, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Skipped updating "+key+" in "+store, e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SharedTier.class.getName());
+}
@@ -0,0 +1,60 @@
+package com.cloudbees.api;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store of tokens that's shared by multiple JVMs, such as a memcached or Redis cluster,
+ * which sits between the in-memory cache and the OAuth server.
+ *
+ * <p>
+ * With this, a token validated by one node doesn't need to be validated again by other nodes,
+ * and the nodes share the tokens that {@link TokenGenerator} creates instead of each creating its own.
+ * Since generated tokens are stored as-is, the store needs to be just as trusted as the nodes themselves.
+ * Validated tokens are stored without the access token.
+ *
+ * <p>
+ * Implement this class to plug in the store of your choice, and pass it to
+ * {@link TokenCacheOptions#withSharedStore(SharedTokenStore, java.util.concurrent.Executor)}.
+ * Failures of the store are logged and otherwise ignored, so that the OAuth server is still consulted.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see #loopback()
+ */
+public abstract class SharedTokenStore {
+    /**
+     * Retrieves the value stored with {@link #put(String, byte[], long, TimeUnit)}.
+     *
+     * @return
+     *      null if the key isn't in the store, or has expired.
+     */
+    public abstract @CheckForNull byte[] get(String key) throws IOException;
+
+    /**
+     * Stores the value, which should be dropped once the given time to live elapses.
+     *
+     * <p>
+     * This is called asynchronously, so it can take its time.
+     */
+    public abstract void put(String key, byte[] value, long ttl, TimeUnit unit) throws IOException;
+
+    /**
+     * Removes the value, if any.
+     *
+     * <p>
+     * This is called asynchronously, so it can take its time.
+     */
+    public abstract void remove(String key) throws IOException;
+
+    /**
+     * Creates a store that lives in the memory of this JVM.
+     *
+     * <p>
+     * This is only useful for sharing tokens among multiple caches in one JVM,
+     * and for testing the use of a shared store without any external service.
+     */
+    public static SharedTokenStore loopback() {
+        return new LoopbackTokenStore();
+    }
+}
@@ -0,0 +1,86 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Makes sure that concurrent requests to load the same key share one load in progress,
+ * whether the callers are blocking or asynchronous.
+ *
+ * <p>
+ * Failures are not remembered, so the next request after a failed load tries again,
+ * just like {@link com.google.common.cache.CacheLoader} does.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class SingleFlight<K,V> {
+    private final ConcurrentMap<K,SettableFuture<V>> flights = new ConcurrentHashMap<K,SettableFuture<V>>();
+
+    /**
+     * Starts loading the value of the given key in the given executor, unless it's already being loaded,
+     * in which case the future of the load in progress is returned.
+     *
+     * @param loader
+     *      Expected to make the value visible to the callers (for example by putting it into a cache)
+     *      before it returns, so that no caller will start another load after this one has finished.
+     */
+    ListenableFuture<V> load(final K key, final Callable<? extends V> loader, Executor executor) {
+        SettableFuture<V> f = flights.get(key);
+        if (f!=null)    return f;
+
+        final SettableFuture<V> nf = SettableFuture.create();
+        f = flights.putIfAbsent(key,nf);
+        if (f!=null)    return f;
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        nf.set(loader.call());
+                    } catch (Throwable t) {
+                        nf.setException(t);
+                    } finally {
+                        flights.remove(key,nf);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            flights.remove(key,nf);
+            nf.setException(e);
+        }
+        return nf;
+    }
+
+    /**
+     * Blocking version of {@link #load(Object, Callable, Executor)}. If this thread ends up
+     * doing the load, it's done right here.
+     */
+    V get(K key, Callable<? extends V> loader) throws OauthClientException {
+        return join(load(key,loader,MoreExecutors.sameThreadExecutor()));
+    }
+
+    /**
+     * Waits for the future and reports its failure as {@link OauthClientException}.
+     */
+    static <V> V join(Future<V> f) throws OauthClientException {
+        try {
+            return Uninterruptibles.getUninterruptibly(f);
+        } catch (ExecutionException e) {
+            // not unwrapping an exception to capture the call stack
+            if (e.getCause() instanceof UpstreamLimitException)
+                throw new UpstreamLimitException(e.getCause().getMessage(),e);
+            throw new OauthClientException(e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.cloudbees.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that is cheap to increment from many threads at once.
+ *
+ * <p>
+ * Each thread increments one of several cells picked by its ID, and the cells are
+ * a cache line apart, so concurrent increments rarely contend. Reading the counter
+ * adds up all the cells, which is much slower, but that's done rarely.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class StripedCounter {
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES*PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long n) {
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES-1);
+        cells.addAndGet(stripe*PADDING, n);
+    }
+
+    long sum() {
+        long n = 0;
+        for (int i=0; i<STRIPES; i++)
+            n += cells.get(i*PADDING);
+        return n;
+    }
+
+    /**
+     * Power of two that's at least twice the number of processors.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1,Runtime.getRuntime().availableProcessors()*2-1))*2;
+
+    /**
+     * Number of longs in a cache line.
+     */
+    private static final int PADDING = 8;
+}
@@ -0,0 +1,433 @@
+package com.cloudbees.api;
+
+import com.google.common.cache.Weigher;
+
+import javax.annotation.CheckForNull;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Size-bounded cache with the W-TinyLFU policy, which keeps frequently used entries
+ * even when lots of entries are used only once, such as when somebody is presenting made-up tokens.
+ *
+ * <p>
+ * New entries go into a small LRU window. Entries pushed out of the window have to compete
+ * with the least recently used entry of the main space, and only the one that has been used more
+ * often recently, according to a {@link FrequencySketch}, stays. The main space is a segmented LRU,
+ * where entries used again are protected from entries that are used only once. An entry that's replaced,
+ * such as when a token is revalidated, keeps its place.
+ *
+ * <p>
+ * Reads don't take any lock. They are recorded in striped, lossy buffers, which are applied
+ * to the policy in batches by whichever thread gets the lock. Writes update the policy under the lock.
+ *
+ * <p>
+ * With a {@link Weigher}, the sizes of the window and the main space are measured in weights
+ * instead of the number of entries.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TinyLfuCache<K,V> implements CacheEngine<K,V> {
+    private final ConcurrentHashMap<K,Node<K,V>> data = new ConcurrentHashMap<K,Node<K,V>>();
+    private final long maximum, windowMaximum, protectedMaximum;
+    private final @CheckForNull Weigher<? super K,? super V> weigher;
+    private final @CheckForNull CacheRemovalListener<K,V> listener;
+
+    /**
+     * Guards the policy, which is everything below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final NodeList<K,V> window = new NodeList<K,V>(), probation = new NodeList<K,V>(), protectedList = new NodeList<K,V>();
+
+    /**
+     * Entries that have been read but not yet applied to the policy.
+     */
+    private final AtomicReferenceArray<Node<K,V>> reads = new AtomicReferenceArray<Node<K,V>>(STRIPES*BUFFER_SIZE);
+    private final AtomicIntegerArray readCounts = new AtomicIntegerArray(STRIPES*PADDING);
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AsMap asMap = new AsMap();
+
+    TinyLfuCache(long maximumSize, @CheckForNull CacheRemovalListener<K,V> listener) {
+        this(maximumSize,null,listener);
+    }
+
+    /**
+     * @param maximum
+     *      Maximum total weight of the entries, or the maximum number of entries without a weigher.
+     */
+    TinyLfuCache(long maximum, @CheckForNull Weigher<? super K,? super V> weigher, @CheckForNull CacheRemovalListener<K,V> listener) {
+        this.maximum = maximum;
+        this.weigher = weigher;
+        this.windowMaximum = Math.max(1, maximum/100);
+        this.protectedMaximum = (maximum-windowMaximum)*8/10;
+        this.listener = listener;
+        this.sketch = new FrequencySketch(weigher==null ? maximum : maximum/AVERAGE_WEIGHT);
+    }
+
+    private Node<K,V> newNode(K key, V value) {
+        return new Node<K,V>(key, value, weigher==null ? 1 : weigher.weigh(key,value));
+    }
+
+    public V getIfPresent(K key) {
+        Node<K,V> n = data.get(key);
+        if (n==null)    return null;
+        afterRead(n);
+        return n.value;
+    }
+
+    public void put(K key, V value) {
+        asMap.put(key,value);
+    }
+
+    public void invalidate(Object key) {
+        asMap.remove(key);
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    public ConcurrentMap<K,V> asMap() {
+        return asMap;
+    }
+
+    private void afterRead(Node<K,V> n) {
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES-1);
+        int i = readCounts.getAndIncrement(stripe*PADDING) & (BUFFER_SIZE-1);
+        reads.lazySet(stripe*BUFFER_SIZE+i, n);
+        if (i==BUFFER_SIZE-1 && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Updates the policy after a new entry is put, replacing {@code old} if any.
+     */
+    private void afterWrite(Node<K,V> n, @CheckForNull Node<K,V> old) {
+        List<Node<K,V>> removed = new ArrayList<Node<K,V>>();
+        lock.lock();
+        try {
+            NodeList<K,V> list = window;
+            if (old!=null) {
+                if (old.list!=null)
+                    list = old.list;
+                unlink(old);
+                removed.add(old);
+            }
+            link(n,list);
+            evict(removed);
+        } finally {
+            lock.unlock();
+        }
+        notify(removed);
+    }
+
+    private void afterRemove(Node<K,V> n) {
+        lock.lock();
+        try {
+            unlink(n);
+        } finally {
+            lock.unlock();
+        }
+        notify(n);
+    }
+
+    private void notify(List<Node<K,V>> nodes) {
+        for (Node<K,V> n : nodes)
+            notify(n);
+    }
+
+    private void notify(Node<K,V> n) {
+        if (listener==null) return;
+        try {
+            listener.onRemoval(n.key,n.value);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Removal listener "+listener+" failed", e);
+        }
+    }
+
+    // all the methods below require the lock
+
+    private void drainReads() {
+        for (int i=0; i<reads.length(); i++) {
+            Node<K,V> n = reads.get(i);
+            if (n!=null) {
+                reads.lazySet(i,null);
+                onAccess(n);
+            }
+        }
+    }
+
+    private void onAccess(Node<K,V> n) {
+        if (n.list==null)   return;     // already gone
+        sketch.increment(n.key);
+        if (n.list==probation) {
+            // used again, so protect it
+            probation.remove(n);
+            protectedList.add(n);
+            while (protectedList.weight>protectedMaximum)
+                probation.add(protectedList.poll());
+        } else {
+            n.list.moveToTail(n);
+        }
+    }
+
+    /**
+     * @param list
+     *      Where the entry goes, which is the window for a new key, and wherever the old entry was for a replaced key.
+     */
+    private void link(Node<K,V> n, NodeList<K,V> list) {
+        if (n.removed)  return;     // removed before we got here
+        sketch.increment(n.key);
+        list.add(n);
+        while (window.weight>windowMaximum)
+            probation.add(window.poll());
+        while (protectedList.weight>protectedMaximum)
+            probation.add(protectedList.poll());
+    }
+
+    private void unlink(Node<K,V> n) {
+        n.removed = true;
+        if (n.list!=null)
+            n.list.remove(n);
+    }
+
+    /**
+     * Evicts entries until we are back within the size. The least recently used entry
+     * in the probation space is the victim, and the entry that just came in from the window is the candidate.
+     * Whichever has been used less often goes.
+     */
+    private void evict(List<Node<K,V>> removed) {
+        while (window.weight+probation.weight+protectedList.weight>maximum) {
+            Node<K,V> victim = probation.head, candidate = probation.tail;
+            Node<K,V> e;
+            if (victim==null)
+                e = protectedList.head!=null ? protectedList.head : window.head;
+            else
+            if (victim==candidate)
+                e = victim;
+            else
+                e = sketch.frequency(candidate.key)>sketch.frequency(victim.key) ? victim : candidate;
+
+            unlink(e);
+            if (data.remove(e.key,e)) {
+                evictions.incrementAndGet();
+                removed.add(e);
+            }
+        }
+    }
+
+    private static final class Node<K,V> {
+        final K key;
+        final V value;
+        final int weight;
+        // guarded by the lock
+        Node<K,V> prev, next;
+        NodeList<K,V> list;
+        boolean removed;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked list of {@link Node}s, from the least recently used to the most.
+     */
+    private static final class NodeList<K,V> {
+        Node<K,V> head, tail;
+        /**
+         * Total weight of the nodes.
+         */
+        long weight;
+
+        void add(Node<K,V> n) {
+            n.list = this;
+            n.prev = tail;
+            n.next = null;
+            if (tail==null) head = n;
+            else            tail.next = n;
+            tail = n;
+            weight += n.weight;
+        }
+
+        void remove(Node<K,V> n) {
+            if (n.prev==null)   head = n.next;
+            else                n.prev.next = n.next;
+            if (n.next==null)   tail = n.prev;
+            else                n.next.prev = n.prev;
+            n.prev = n.next = null;
+            n.list = null;
+            weight -= n.weight;
+        }
+
+        Node<K,V> poll() {
+            Node<K,V> n = head;
+            remove(n);
+            return n;
+        }
+
+        void moveToTail(Node<K,V> n) {
+            if (tail!=n) {
+                remove(n);
+                add(n);
+            }
+        }
+    }
+
+    /**
+     * Map view that keeps the policy up to date, as the cached validator and generator
+     * go through it to remove and expire entries.
+     */
+    private final class AsMap extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+        @Override
+        public V get(Object key) {
+            Node<K,V> n = data.get(key);
+            return n==null ? null : n.value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public V put(K key, V value) {
+            Node<K,V> n = newNode(key,value);
+            Node<K,V> old = data.put(key,n);
+            afterWrite(n,old);
+            return old==null ? null : old.value;
+        }
+
+        public V putIfAbsent(K key, V value) {
+            Node<K,V> n = newNode(key,value);
+            Node<K,V> old = data.putIfAbsent(key,n);
+            if (old!=null)  return old.value;
+            afterWrite(n,null);
+            return null;
+        }
+
+        @Override
+        public V remove(Object key) {
+            Node<K,V> n = data.remove(key);
+            if (n==null)    return null;
+            afterRemove(n);
+            return n.value;
+        }
+
+        public boolean remove(Object key, Object value) {
+            Node<K,V> n = data.get(key);
+            if (n==null || !n.value.equals(value) || !data.remove(key,n))
+                return false;
+            afterRemove(n);
+            return true;
+        }
+
+        public boolean replace(K key, V oldValue, V newValue) {
+            Node<K,V> old = data.get(key);
+            if (old==null || !old.value.equals(oldValue))
+                return false;
+            Node<K,V> n = newNode(key,newValue);
+            if (!data.replace(key,old,n))
+                return false;
+            afterWrite(n,old);
+            return true;
+        }
+
+        public V replace(K key, V value) {
+            Node<K,V> n = newNode(key,value);
+            for (Node<K,V> old=data.get(key); old!=null; old=data.get(key)) {
+                if (data.replace(key,old,n)) {
+                    afterWrite(n,old);
+                    return old.value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void clear() {
+            for (K key : data.keySet())
+                remove(key);
+        }
+
+        @Override
+        public Set<Entry<K,V>> entrySet() {
+            return new AbstractSet<Entry<K,V>>() {
+                @Override
+                public Iterator<Entry<K,V>> iterator() {
+                    final Iterator<Node<K,V>> itr = data.values().iterator();
+                    return new Iterator<Entry<K,V>>() {
+                        private Node<K,V> last;
+
+                        public boolean hasNext() {
+                            return itr.hasNext();
+                        }
+
+                        public Entry<K,V> next() {
+                            last = itr.next();
+                            return new SimpleImmutableEntry<K,V>(last.key,last.value);
+                        }
+
+                        public void remove() {
+                            if (last==null)  throw new IllegalStateException();
+                            AsMap.this.remove(last.key,last.value);
+                            last = null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return data.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * Power of two that's at least the number of processors.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1,Runtime.getRuntime().availableProcessors()-1))*2;
+    private static final int BUFFER_SIZE = 16;
+    /**
+     * Keeps the read counts of stripes a cache line apart.
+     */
+    private static final int PADDING = 16;
+    /**
+     * Guess of the average weight of an entry, which sizes the sketch when there's a weigher.
+     */
+    private static final int AVERAGE_WEIGHT = 256;
+
+    private static final Logger LOGGER = Logger.getLogger(TinyLfuCache.class.getName());
+}
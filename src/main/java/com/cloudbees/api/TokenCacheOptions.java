@@ -0,0 +1,343 @@
+package com.cloudbees.api;
+
+import com.google.common.base.Function;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Additional knobs for {@link TokenValidator#withCache(CacheBuilder, TokenCacheOptions)}
+ * and {@link TokenGenerator#withCache(CacheBuilder, TokenCacheOptions)} that go beyond what {@link CacheBuilder} can express.
+ *
+ * <p>
+ * Once passed to {@code withCache}, do not modify this object.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class TokenCacheOptions {
+    /*package*/ Executor executor;
+    /*package*/ long negativeTtl = TimeUnit.MINUTES.toMillis(1);
+    /*package*/ int negativeMaximumSize = 4096;
+    /*package*/ boolean negativeFilter;
+    /*package*/ boolean fingerprint;
+    /*package*/ int breakerThreshold;
+    /*package*/ long breakerInitialBackoff, breakerMaxBackoff;
+    /*package*/ long staleGrace;
+    /*package*/ TokenMetrics metrics;
+    /*package*/ File snapshotFile;
+    /*package*/ ScheduledExecutorService snapshotScheduler;
+    /*package*/ long snapshotPeriod;
+    /*package*/ SharedTokenStore sharedStore;
+    /*package*/ Executor sharedWriter;
+    /*package*/ long tinyLfuMaximumSize;
+    /*package*/ long maxStaleness;
+    /*package*/ long maximumBytes;
+    /*package*/ double heapFraction;
+    /*package*/ long partitionedMaximumSize, minPerAccount, maxPerAccount;
+    /*package*/ double revalidationRate;
+    /*package*/ ScheduledExecutorService revalidationScheduler;
+
+    /**
+     * Specifies the executor that runs background work, such as refreshing a generated token
+     * ahead of its expiration.
+     *
+     * <p>
+     * When an executor is given, {@link TokenGenerator#withCache()} stops blocking callers once half the
+     * lifetime of a token has passed. Instead, exactly one refresh is submitted to this executor,
+     * and callers keep getting the current token until the new one arrives. If the refresh fails,
+     * the current token keeps being served until it really expires.
+     *
+     * <p>
+     * {@link TokenValidator#validateTokens(java.util.Collection)} also uses this executor to validate
+     * cache misses concurrently, so it should be bounded to what you are willing to throw at the OAuth server.
+     * So do {@link TokenValidator#validateTokenAsync(String)} and {@link TokenGenerator#createTokenAsync(com.cloudbees.api.oauth.TokenRequest)},
+     * which would otherwise block the calling thread on a cache miss.
+     *
+     * @param executor
+     *      null to do everything synchronously on the calling thread, which is the default.
+     */
+    public TokenCacheOptions withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Configures how the validator remembers tokens that failed validation.
+     *
+     * <p>
+     * Invalid tokens are kept apart from the valid ones, so that a client presenting
+     * lots of bogus tokens cannot push real users out of the cache.
+     * By default, up to 4096 invalid tokens are remembered for a minute each.
+     */
+    public TokenCacheOptions withNegativeCache(long ttl, TimeUnit unit, int maximumSize) {
+        this.negativeTtl = unit.toMillis(ttl);
+        this.negativeMaximumSize = maximumSize;
+        return this;
+    }
+
+    /**
+     * Puts a counting Bloom filter of the recently rejected tokens in front of the negative cache,
+     * so that valid tokens can skip the negative cache lookup with a few arithmetic operations.
+     * Off by default.
+     */
+    public TokenCacheOptions withNegativeFilter(boolean enabled) {
+        this.negativeFilter = enabled;
+        return this;
+    }
+
+    /**
+     * Keys the validator cache by a 128-bit digest of the token instead of the token itself,
+     * and keeps the cached tokens in a compact form without the access token, in which
+     * the same accounts and scopes are shared among tokens.
+     *
+     * <p>
+     * This keeps bearer secrets out of the heap (and therefore out of heap dumps), and
+     * makes each entry several times smaller, at the cost of computing a digest on every lookup.
+     * {@link TokenValidator#validateToken(String)} also has to decode the cached token, which
+     * {@link TokenValidator#validateTokenView(String)} doesn't.
+     * {@link OauthTokenView#getAccessToken()} returns null in this mode, since the caller already has the token.
+     * Tokens waiting to be revalidated under {@link #withMaxStaleness(long, TimeUnit, double, ScheduledExecutorService)}
+     * are still kept as they are until they are sent to the server. Off by default.
+     */
+    public TokenCacheOptions withFingerprintKeys(boolean enabled) {
+        this.fingerprint = enabled;
+        return this;
+    }
+
+    /**
+     * Puts a circuit breaker in front of the OAuth server.
+     *
+     * <p>
+     * After the given number of consecutive failures, cache misses fail fast for the backoff period,
+     * instead of each tying up a thread until the server times out. Then a single request is let through
+     * to see if the server is back. Each time this probe fails, the backoff doubles, up to the maximum.
+     * Off by default.
+     */
+    public TokenCacheOptions withCircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this.breakerThreshold = failureThreshold;
+        this.breakerInitialBackoff = unit.toMillis(initialBackoff);
+        this.breakerMaxBackoff = unit.toMillis(maxBackoff);
+        return this;
+    }
+
+    /**
+     * Keeps validated tokens for this long past their expiration, and serves them if they can't
+     * be revalidated because the OAuth server is down (or the circuit breaker is open.)
+     *
+     * <p>
+     * With an {@linkplain #withExecutor(Executor) executor}, an expired token is served right away
+     * while it's revalidated in the background, so callers never wait for a slow or unreachable server.
+     * Without one, the token is revalidated on the calling thread first.
+     *
+     * <p>
+     * This trades the accuracy of the expiration for the availability during an outage of the OAuth server.
+     * A token served this way reports an expiration in the past. 0 by default, which never serves
+     * an expired token.
+     */
+    public TokenCacheOptions withStaleGrace(long grace, TimeUnit unit) {
+        this.staleGrace = unit.toMillis(grace);
+        return this;
+    }
+
+    /**
+     * Counts hits, misses, and calls to the OAuth server into the given object.
+     *
+     * @param metrics
+     *      null to not expose the numbers, which is the default.
+     */
+    public TokenCacheOptions withMetrics(TokenMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Periodically saves the validated tokens to the given file, and picks them up from there
+     * when the validator is created again, such as after a restart.
+     *
+     * <p>
+     * Without this, a freshly started validator has to revalidate every token that its clients present,
+     * which hits the OAuth server hard when a whole fleet is redeployed. The file only has
+     * digests of the tokens, not the tokens themselves, and expired tokens are never restored.
+     * The file is read lazily, upon the first cache miss.
+     *
+     * <p>
+     * The snapshot keeps being written until the scheduler is shut down, or the validator is garbage collected.
+     *
+     * @param scheduler
+     *      Runs the periodic writes.
+     */
+    public TokenCacheOptions withSnapshot(File file, ScheduledExecutorService scheduler, long period, TimeUnit unit) {
+        this.snapshotFile = file;
+        this.snapshotScheduler = scheduler;
+        this.snapshotPeriod = unit.toMillis(period);
+        return this;
+    }
+
+    /**
+     * Consults the given store shared with other JVMs before going to the OAuth server,
+     * so that a token validated or created by one JVM is reused by the others.
+     * Tokens without an expiry ({@code expires_in} of 0) are never shared.
+     *
+     * @param writer
+     *      Writes new tokens to the store in the background.
+     * @see SharedTokenStore
+     */
+    public TokenCacheOptions withSharedStore(SharedTokenStore store, Executor writer) {
+        this.sharedStore = store;
+        this.sharedWriter = writer;
+        return this;
+    }
+
+    /**
+     * Holds up to the given number of tokens in a cache that decides what to keep by how often
+     * each token has been used recently (W-TinyLFU), instead of the {@link CacheBuilder}.
+     *
+     * <p>
+     * An LRU cache throws out a popular token as soon as enough tokens that are used only once
+     * come through, such as during a crawl or a burst of new sessions. This cache only lets a new token in
+     * at the expense of one that has been used less often, so popular tokens stay. Reads also don't
+     * take any lock, which helps when many threads validate the same few tokens.
+     *
+     * <p>
+     * When this is set, the size, expiration, and removal listener configured on the {@link CacheBuilder} are ignored.
+     * Tokens still expire as they normally do. 0 by default, which uses the {@link CacheBuilder}.
+     */
+    public TokenCacheOptions withTinyLfu(long maximumSize) {
+        this.tinyLfuMaximumSize = maximumSize;
+        return this;
+    }
+
+    /**
+     * Bounds how long the validator trusts a token without asking the OAuth server again,
+     * so that a revoked token stops working at around that time, even if it hasn't expired.
+     *
+     * <p>
+     * A token used after this much time since it was validated is revalidated in the background,
+     * while callers keep getting it from the cache. Revalidations run at most at the given rate,
+     * the most used tokens first, and they go through the {@linkplain #withExecutor(Executor) executor}
+     * if one is given. Requests never wait for them, so when there are more tokens to revalidate than
+     * the rate allows, the less used ones are trusted for longer. By default, tokens are trusted until they expire.
+     *
+     * <p>
+     * The tokens waiting to be revalidated are kept in the heap as they are, even with
+     * {@link #withFingerprintKeys(boolean)}, since the server needs them.
+     *
+     * @param scheduler
+     *      Looks for tokens to revalidate, until it's shut down or the validator is garbage collected.
+     */
+    public TokenCacheOptions withMaxStaleness(long staleness, TimeUnit unit, double maxRevalidationsPerSecond, ScheduledExecutorService scheduler) {
+        this.maxStaleness = unit.toMillis(staleness);
+        this.revalidationRate = maxRevalidationsPerSecond;
+        this.revalidationScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Bounds the cache by the estimated bytes of heap its entries retain, instead of the number of entries.
+     *
+     * <p>
+     * Tokens vary in size with their scopes and such, so this is the way to plan the capacity in terms of memory.
+     * {@link TokenMetrics#getRetainedBytes()} reports how much the cache actually holds.
+     * Do not set {@link CacheBuilder#maximumSize(long)} together with this.
+     * With {@link #withTinyLfu(long)}, this takes precedence over its maximum size.
+     */
+    public TokenCacheOptions withMaximumBytes(long bytes) {
+        this.maximumBytes = bytes;
+        this.heapFraction = 0;
+        return this;
+    }
+
+    /**
+     * Like {@link #withMaximumBytes(long)}, but the budget is the given fraction of the maximum heap size,
+     * such as 0.05 for 5%.
+     */
+    public TokenCacheOptions withHeapFraction(double fraction) {
+        if (fraction<=0 || fraction>=1)
+            throw new IllegalArgumentException("Invalid fraction of the heap: "+fraction);
+        this.heapFraction = fraction;
+        this.maximumBytes = 0;
+        return this;
+    }
+
+    /**
+     * Byte budget of the cache, or 0 if it's bounded some other way.
+     */
+    /*package*/ long getMaximumBytes() {
+        if (heapFraction>0)
+            return (long)(Runtime.getRuntime().maxMemory()*heapFraction);
+        return maximumBytes;
+    }
+
+    /**
+     * Applies the byte budget, if any, to the given builder.
+     */
+    /*package*/ CacheBuilder<Object,Object> applyMaximumBytes(CacheBuilder<Object,Object> cb) {
+        long bytes = getMaximumBytes();
+        if (bytes<=0)   return cb;
+        return cb.maximumWeight(bytes).weigher(TokenWeigher.INSTANCE);
+    }
+
+    /**
+     * Divides the validator cache by the accounts of the tokens, so that an account with lots of tokens
+     * can't push the tokens of the other accounts out.
+     *
+     * <p>
+     * Each account is guaranteed room for {@code minPerAccount} tokens, and can use up to {@code maxPerAccount}
+     * when other accounts leave room. When the cache is full, an account beyond its minimum makes room
+     * by evicting its own least recently used token, and an account within its minimum takes the room from
+     * the account that uses the most. The minimum holds as long as the number of active accounts times
+     * {@code minPerAccount} fits in {@code maximumSize}. {@link TokenMetrics#getPartitionStats()} shows how each account is doing.
+     *
+     * <p>
+     * The sizes are in the number of tokens. This takes precedence over {@link #withTinyLfu(long)}, the byte budget,
+     * and the size, expiration, and removal listener configured on the {@link CacheBuilder}.
+     * The generator cache isn't affected.
+     */
+    public TokenCacheOptions withAccountPartitions(long maximumSize, long minPerAccount, long maxPerAccount) {
+        if (minPerAccount<0 || maxPerAccount<Math.max(minPerAccount,1) || maximumSize<maxPerAccount)
+            throw new IllegalArgumentException("Invalid partitions: "+minPerAccount+".."+maxPerAccount+" tokens per account in "+maximumSize);
+        this.partitionedMaximumSize = maximumSize;
+        this.minPerAccount = minPerAccount;
+        this.maxPerAccount = maxPerAccount;
+        return this;
+    }
+
+    /*package*/ PartitionedCache<Object,CachedToken> createPartitionedCache(CacheRemovalListener<Object,CachedToken> listener) {
+        if (partitionedMaximumSize<=0)  return null;
+        return new PartitionedCache<Object,CachedToken>(partitionedMaximumSize, minPerAccount, maxPerAccount,
+                new Function<CachedToken,String>() {
+                    public String apply(CachedToken c) {
+                        return c.getAccount();
+                    }
+                }, listener);
+    }
+
+    /*package*/ <K,V> TinyLfuCache<K,V> createTinyLfuCache(CacheRemovalListener<K,V> listener) {
+        if (tinyLfuMaximumSize<=0)  return null;
+        long bytes = getMaximumBytes();
+        if (bytes>0)
+            return new TinyLfuCache<K,V>(bytes, TokenWeigher.INSTANCE, listener);
+        return new TinyLfuCache<K,V>(tinyLfuMaximumSize, listener);
+    }
+
+    /*package*/ TokenMetrics getMetrics() {
+        return metrics!=null ? metrics : new TokenMetrics();
+    }
+
+    /*package*/ SharedTier createSharedTier() {
+        if (sharedStore==null)  return null;
+        return new SharedTier(sharedStore, sharedWriter);
+    }
+
+    /*package*/ CircuitBreaker createCircuitBreaker() {
+        if (breakerThreshold<=0)    return null;
+        return new CircuitBreaker(breakerThreshold, breakerInitialBackoff, breakerMaxBackoff);
+    }
+
+    /*package*/ NegativeCache createNegativeCache() {
+        return new NegativeCache(negativeTtl, negativeMaximumSize, negativeFilter);
+    }
+}
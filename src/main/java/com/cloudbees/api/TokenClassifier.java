@@ -0,0 +1,47 @@
+package com.cloudbees.api;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Groups tokens into families, so that a cascaded {@link TokenValidator} can remember
+ * which of its validators knows tokens of each family.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see TokenValidator#or(TokenValidator, TokenClassifier)
+ */
+public abstract class TokenClassifier {
+    /**
+     * Determines the family of the given token.
+     *
+     * @return
+     *      Any object with proper {@code equals} and {@code hashCode}, or null if the token
+     *      doesn't belong to any family and thus shouldn't be remembered.
+     */
+    public abstract @CheckForNull Object classify(String token);
+
+    /**
+     * Each token is a family of its own. The token is remembered by its {@link TokenFingerprint},
+     * so the secret isn't kept around.
+     */
+    public static final TokenClassifier FINGERPRINT = new TokenClassifier() {
+        @Override
+        public Object classify(String token) {
+            return TokenFingerprint.of(token);
+        }
+    };
+
+    /**
+     * Tokens that start with the same {@code length} characters form a family.
+     * Suitable when the issuer of a token can be told from its prefix.
+     */
+    public static TokenClassifier prefix(final int length) {
+        if (length<=0)
+            throw new IllegalArgumentException("Prefix length must be positive: "+length);
+        return new TokenClassifier() {
+            @Override
+            public Object classify(String token) {
+                return token.length()>length ? token.substring(0,length) : null;
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthToken;
+import org.codehaus.jackson.map.DeserializationConfig.Feature;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+import org.codehaus.jackson.map.introspect.VisibilityChecker.Std;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.codehaus.jackson.annotate.JsonAutoDetect.Visibility.*;
+
+/**
+ * Turns {@link OauthToken}s into bytes and back, for storing them outside the heap.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TokenCodec {
+    private TokenCodec() {}
+
+    static byte[] toJson(OauthToken t) throws IOException {
+        return MAPPER.writeValueAsBytes(t);
+    }
+
+    static OauthToken fromJson(byte[] json) throws IOException {
+        return MAPPER.readValue(json, OauthToken.class);
+    }
+
+    /**
+     * Encodes the token along with its expiration.
+     *
+     * @param expiration
+     *      Time in milliseconds since the epoch.
+     */
+    static byte[] encode(OauthToken t, long expiration) throws IOException {
+        byte[] json = toJson(t);
+        return ByteBuffer.allocate(8+json.length).putLong(expiration).put(json).array();
+    }
+
+    /**
+     * Decodes what {@link #encode(OauthToken, long)} produced.
+     *
+     * @param accessToken
+     *      If non-null, set to the decoded token.
+     */
+    static CachedToken decode(byte[] data, @CheckForNull String accessToken) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(data);
+        if (b.remaining()<8)
+            throw new IOException("Truncated token");
+        long expiration = b.getLong();
+        OauthToken t = MAPPER.readValue(data, 8, data.length-8, OauthToken.class);
+        if (accessToken!=null)
+            t.accessToken = accessToken;
+        return new CachedToken(t,expiration);
+    }
+
+    /**
+     * Only looks at the fields, so that getters like {@link OauthToken#isExpired()} don't end up in the data.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        MAPPER.setVisibilityChecker(new Std(NONE, NONE, NONE, NONE, ANY));
+        MAPPER.setSerializationInclusion(Inclusion.NON_NULL);
+        MAPPER.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+}
@@ -0,0 +1,57 @@
+package com.cloudbees.api;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 128-bit digest of an access token, used in place of the token itself as a cache key.
+ *
+ * <p>
+ * This lets us keep tokens around without the secrets themselves sitting on the heap,
+ * and it takes less memory than the token string. The digest is cryptographic, so a token
+ * cannot be crafted to collide with somebody else's.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TokenFingerprint {
+    private final long hi,lo;
+
+    TokenFingerprint(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    static TokenFingerprint of(String token) {
+        ByteBuffer b = ByteBuffer.wrap(Hashing.sha256().hashString(token, Charsets.UTF_8).asBytes());
+        return new TokenFingerprint(b.getLong(),b.getLong());
+    }
+
+    long getHi() {
+        return hi;
+    }
+
+    long getLo() {
+        return lo;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TokenFingerprint)) return false;
+        TokenFingerprint that = (TokenFingerprint) o;
+        return hi==that.hi && lo==that.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        // the bits are already well distributed
+        return (int)lo;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x",hi,lo);
+    }
+}
@@ -6,11 +6,14 @@ import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.OauthToken;
 import com.cloudbees.api.oauth.TokenRequest;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINE;
@@ -29,6 +32,25 @@ public abstract class TokenGenerator {
      */
     public abstract OauthToken createToken(TokenRequest tokenRequest) throws OauthClientException;
 
+    /**
+     * Asynchronous version of {@link #createToken(TokenRequest)}.
+     *
+     * <p>
+     * This default implementation creates the token on the calling thread before returning
+     * a completed future, but cached generators complete hits immediately and create tokens
+     * in the background.
+     *
+     * @return
+     *      Future that fails with {@link OauthClientException} if there was a problem.
+     */
+    public ListenableFuture<OauthToken> createTokenAsync(TokenRequest tokenRequest) {
+        try {
+            return Futures.immediateFuture(createToken(tokenRequest));
+        } catch (OauthClientException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
     /**
      * Creates a {@link Credential} that will authenticate requests by creating a token according to
      * the argument given.
@@ -63,6 +85,27 @@ public abstract class TokenGenerator {
         };
     }
 
+    /**
+     * Creates a {@link Credential} that will authenticate requests by a token created according to
+     * the argument given, and refreshed in the background before it expires.
+     *
+     * <p>
+     * Unlike {@link #asCredential(TokenRequest)}, {@link #createToken(TokenRequest)} is not called for every request.
+     * The credential holds on to the current token and creates a new one halfway through its remaining lifetime,
+     * so authorizing a request costs next to nothing. This is the one to use for clients that make lots of requests.
+     * If the refresh keeps failing until the token expires, the next request tries to create a token by itself,
+     * and fails if it can't.
+     *
+     * @param r
+     *      Once you pass a {@link TokenRequest} to this method, do not change it.
+     * @param scheduler
+     *      Runs the refreshes. One scheduler can be shared by any number of credentials.
+     *      Credentials that are no longer referenced stop refreshing.
+     */
+    public Credential asCredential(TokenRequest r, ScheduledExecutorService scheduler) {
+        return new RefreshingCredential(this,r,scheduler);
+    }
+
     /**
      * OAuth client application can use this method to create an OAuth token with arbitrary scopes
      * that belongs to the user who registered the application.
@@ -90,7 +133,44 @@ public abstract class TokenGenerator {
      * Wraps this {@link CachedTokenGenerator} by adding caching.
      */
     public TokenGenerator withCache(CacheBuilder<Object,Object> builder) {
-        return new CachedTokenGenerator(builder,this);
+        return withCache(builder,new TokenCacheOptions());
+    }
+
+    /**
+     * Wraps this {@link CachedTokenGenerator} by adding caching, with additional options
+     * such as refreshing tokens ahead of their expiration.
+     */
+    public TokenGenerator withCache(CacheBuilder<Object,Object> builder, TokenCacheOptions options) {
+        return new CachedTokenGenerator(builder,options,this);
+    }
+
+    /**
+     * Wraps this {@link TokenGenerator} so that it's called only as much as the given {@link UpstreamLimiter} allows.
+     * Calls over the limit fail with {@link UpstreamLimitException}.
+     */
+    public TokenGenerator withLimiter(final UpstreamLimiter limiter) {
+        final TokenGenerator base = this;
+        return new TokenGenerator() {
+            @Override
+            public OauthToken createToken(TokenRequest tokenRequest) throws OauthClientException {
+                limiter.acquire();
+                try {
+                    return base.createToken(tokenRequest);
+                } finally {
+                    limiter.release();
+                }
+            }
+
+            @Override
+            public OauthToken createOAuthClientToken(Collection<String> scopes) throws OauthClientException {
+                limiter.acquire();
+                try {
+                    return base.createOAuthClientToken(scopes);
+                } finally {
+                    limiter.release();
+                }
+            }
+        };
     }
 
     /**
@@ -125,6 +205,16 @@ public abstract class TokenGenerator {
         };
     }
 
+    /**
+     * Wraps the {@link OauthClient} into {@link TokenGenerator} that calls the OAuth server
+     * only as much as the given {@link UpstreamLimiter} allows.
+     *
+     * The resulting generator does no caching.
+     */
+    public static TokenGenerator from(OauthClient client, UpstreamLimiter limiter) {
+        return from(client).withLimiter(limiter);
+    }
+
     public static TokenGenerator from(BeesClient bees) {
         return from(bees.getOauthClient());
     }
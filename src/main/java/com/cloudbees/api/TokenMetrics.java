@@ -0,0 +1,284 @@
+package com.cloudbees.api;
+
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts what cached {@link TokenValidator}s and {@link TokenGenerator}s are doing, and
+ * how long the calls to the OAuth server take.
+ *
+ * <p>
+ * Pass an instance to {@link TokenCacheOptions#withMetrics(TokenMetrics)} or
+ * {@link TokenValidator#from(com.cloudbees.api.oauth.OauthClient, TokenMetrics)},
+ * and to {@link UpstreamLimiter#withMetrics(TokenMetrics)} to see how often the limiter is saturated.
+ * One instance can be shared by multiple caches to get the totals, but if both a cache and
+ * the client behind it are instrumented, give them separate instances, or else each call to
+ * the server gets counted twice.
+ *
+ * <p>
+ * Counting is cheap enough to be left on in production. To see the numbers in JMX, register
+ * this object to an MBean server, such as
+ * {@code ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("com.cloudbees.api:type=TokenCache"))}.
+ * To feed them to some other monitoring system, add a {@link Listener}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class TokenMetrics implements TokenMetricsMBean {
+    /**
+     * What's being counted.
+     */
+    public enum Event {
+        /**
+         * A lookup was answered from the cache.
+         */
+        HIT,
+        /**
+         * A lookup had to go to the server.
+         */
+        MISS,
+        /**
+         * A lookup found the token in the cache of invalid tokens.
+         */
+        NEGATIVE_HIT,
+        /**
+         * A lookup found an expired token that had to be revalidated.
+         */
+        STALE_HIT,
+        /**
+         * A call to the server succeeded.
+         */
+        LOAD_SUCCESS,
+        /**
+         * A call to the server failed.
+         */
+        LOAD_FAILURE,
+        /**
+         * A cache entry was removed because the token has expired.
+         */
+        EXPIRATION,
+        /**
+         * A call to the server had to wait for {@link UpstreamLimiter}.
+         */
+        THROTTLED,
+        /**
+         * A call to the server was rejected by {@link UpstreamLimiter}.
+         */
+        REJECTED
+    }
+
+    /**
+     * Receives every event as it happens.
+     *
+     * <p>
+     * This is called synchronously from the thread that's validating or creating tokens,
+     * so it must be fast and it must not block.
+     */
+    public interface Listener {
+        /**
+         * @param nanos
+         *      For {@link Event#LOAD_SUCCESS} and {@link Event#LOAD_FAILURE}, how long the call took.
+         *      0 for others.
+         */
+        void onEvent(Event event, long nanos);
+    }
+
+    private final StripedCounter[] counters = new StripedCounter[Event.values().length];
+
+    /**
+     * Latencies of the calls to the server being recorded, and the last full window of them.
+     */
+    private volatile LatencyHistogram current = new LatencyHistogram(), previous;
+    private volatile long windowStart = System.nanoTime();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<CacheEngine<?,?>> caches = new CopyOnWriteArrayList<CacheEngine<?,?>>();
+
+    public TokenMetrics() {
+        for (int i=0; i<counters.length; i++)
+            counters[i] = new StripedCounter();
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Number of times the given event has happened.
+     */
+    public long getCount(Event e) {
+        return counters[e.ordinal()].sum();
+    }
+
+    /**
+     * Latency of the recent calls to the server at the given percentile, or -1 if there hasn't been any.
+     * The latencies are collected in one minute windows, and this reports the last complete window if any.
+     *
+     * @param percentile
+     *      Between 0 and 1, such as 0.99 for the 99th percentile.
+     */
+    public long getLoadLatency(double percentile, TimeUnit unit) {
+        LatencyHistogram h = previous;
+        if (h==null)    h = current;
+        return h.getPercentile(percentile,unit);
+    }
+
+    public long getHitCount() {
+        return getCount(Event.HIT);
+    }
+
+    public long getMissCount() {
+        return getCount(Event.MISS);
+    }
+
+    public long getNegativeHitCount() {
+        return getCount(Event.NEGATIVE_HIT);
+    }
+
+    public long getStaleHitCount() {
+        return getCount(Event.STALE_HIT);
+    }
+
+    public double getHitRatio() {
+        long hits = getHitCount()+getNegativeHitCount();
+        long total = hits+getMissCount()+getStaleHitCount();
+        return total==0 ? Double.NaN : (double)hits/total;
+    }
+
+    public long getLoadCount() {
+        return getCount(Event.LOAD_SUCCESS)+getLoadFailureCount();
+    }
+
+    public long getLoadFailureCount() {
+        return getCount(Event.LOAD_FAILURE);
+    }
+
+    public long getThrottledCount() {
+        return getCount(Event.THROTTLED);
+    }
+
+    public long getRejectedCount() {
+        return getCount(Event.REJECTED);
+    }
+
+    /**
+     * Besides the expirations we count, this includes what the caches have evicted on their own
+     * to stay within their bounds, which those built from {@link com.google.common.cache.CacheBuilder}
+     * only count if they record stats.
+     */
+    public long getEvictionCount() {
+        long n = getCount(Event.EXPIRATION);
+        for (CacheEngine<?,?> c : caches)
+            n += c.evictionCount();
+        return n;
+    }
+
+    /**
+     * Adds up the estimated sizes of all the entries, so this takes time proportional to the number of entries.
+     *
+     * @see TokenCacheOptions#withMaximumBytes(long)
+     */
+    public long getRetainedBytes() {
+        long n = 0;
+        for (CacheEngine<?,?> c : caches) {
+            for (Map.Entry<?,?> e : c.asMap().entrySet())
+                n += TokenWeigher.INSTANCE.weigh(e.getKey(),e.getValue());
+        }
+        return n;
+    }
+
+    /**
+     * How each account is doing in the caches partitioned by accounts, keyed by the account.
+     * Accounts that have no token in the caches aren't included.
+     *
+     * @see TokenCacheOptions#withAccountPartitions(long, long, long)
+     */
+    public Map<String,PartitionStats> getPartitionStats() {
+        Map<String,PartitionStats> r = new TreeMap<String,PartitionStats>();
+        for (CacheEngine<?,?> c : caches) {
+            if (c instanceof PartitionedCache) {
+                for (PartitionStats s : ((PartitionedCache<?,?>)c).getPartitionStats()) {
+                    PartitionStats t = r.get(s.getAccount());
+                    r.put(s.getAccount(), t==null ? s : t.plus(s));
+                }
+            }
+        }
+        return r;
+    }
+
+    public int getPartitionCount() {
+        return getPartitionStats().size();
+    }
+
+    public double getLoadLatencyMedian() {
+        return toMillis(getLoadLatency(0.5, TimeUnit.MICROSECONDS));
+    }
+
+    public double getLoadLatency99thPercentile() {
+        return toMillis(getLoadLatency(0.99, TimeUnit.MICROSECONDS));
+    }
+
+    private static double toMillis(long micros) {
+        return micros<0 ? -1 : micros/1000.0;
+    }
+
+    /**
+     * Includes the evictions of the given cache in {@link #getEvictionCount()}.
+     */
+    /*package*/ void bind(CacheEngine<?,?> cache) {
+        caches.add(cache);
+    }
+
+    /*package*/ void record(Event e) {
+        record(e,1,0);
+    }
+
+    /*package*/ void recordExpirations(int n) {
+        if (n>0)
+            record(Event.EXPIRATION,n,0);
+    }
+
+    /**
+     * Records a call to the server.
+     */
+    /*package*/ void recordLoad(boolean success, long nanos) {
+        long now = System.nanoTime();
+        if (now-windowStart > WINDOW) {
+            synchronized (this) {
+                if (now-windowStart > WINDOW) {
+                    previous = current;
+                    current = new LatencyHistogram();
+                    windowStart = now;
+                }
+            }
+        }
+        current.record(nanos);
+        record(success ? Event.LOAD_SUCCESS : Event.LOAD_FAILURE, 1, nanos);
+    }
+
+    private void record(Event e, int n, long nanos) {
+        counters[e.ordinal()].add(n);
+        for (Listener l : listeners) {
+            for (int i=0; i<n; i++) {
+                try {
+                    l.onEvent(e,nanos);
+                } catch (RuntimeException x) {
+                    LOGGER.log(Level.WARNING, "Metrics listener "+l+" failed", x);
+                }
+            }
+        }
+    }
+
+    private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Logger LOGGER = Logger.getLogger(TokenMetrics.class.getName());
+}
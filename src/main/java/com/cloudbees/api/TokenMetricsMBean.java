@@ -0,0 +1,78 @@
+package com.cloudbees.api;
+
+/**
+ * JMX view of {@link TokenMetrics}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public interface TokenMetricsMBean {
+    /**
+     * Number of lookups answered from the cache.
+     */
+    long getHitCount();
+
+    /**
+     * Number of lookups that had to go to the server.
+     */
+    long getMissCount();
+
+    /**
+     * Number of lookups of tokens that were known to be invalid.
+     */
+    long getNegativeHitCount();
+
+    /**
+     * Number of lookups of expired tokens that had to be revalidated.
+     */
+    long getStaleHitCount();
+
+    /**
+     * Fraction of lookups answered without waiting for the server, or NaN if there hasn't been any lookup.
+     */
+    double getHitRatio();
+
+    /**
+     * Number of calls to the server, successful or not.
+     */
+    long getLoadCount();
+
+    /**
+     * Number of calls to the server that failed.
+     */
+    long getLoadFailureCount();
+
+    /**
+     * Number of calls to the server that had to wait for the rate limit or a free slot.
+     */
+    long getThrottledCount();
+
+    /**
+     * Number of calls to the server that were rejected because of the rate limit or too many calls in flight.
+     */
+    long getRejectedCount();
+
+    /**
+     * Number of entries the caches evicted, because of their size or their expiration.
+     */
+    long getEvictionCount();
+
+    /**
+     * Estimated bytes of heap retained by the entries of the caches.
+     */
+    long getRetainedBytes();
+
+    /**
+     * Number of accounts that have tokens in the caches partitioned by accounts.
+     */
+    int getPartitionCount();
+
+    /**
+     * Median latency of the recent calls to the server, in milliseconds, or -1 if there hasn't been any.
+     */
+    double getLoadLatencyMedian();
+
+    /**
+     * 99th percentile latency of the recent calls to the server, in milliseconds, or -1 if there hasn't been any.
+     */
+    double getLoadLatency99thPercentile();
+}
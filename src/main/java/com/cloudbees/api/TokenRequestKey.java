@@ -0,0 +1,189 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.TokenRequest;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable cache key of {@link CachedTokenGenerator}.
+ *
+ * <p>
+ * Two keys are equal if they ask for the same token, where the order of scopes doesn't matter.
+ * The key is made from a snapshot of all the fields of {@link TokenRequest}, so that requests
+ * that differ in any way get different tokens. A copy of the request travels with the key,
+ * so that the token can be created, and refreshed later, without reconstructing the request,
+ * and without seeing what the caller does to the request afterward.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TokenRequestKey {
+    /**
+     * Request for {@link TokenGenerator#createToken(TokenRequest)}, or null if this is
+     * for {@link TokenGenerator#createOAuthClientToken(Collection)}.
+     */
+    private final @Nullable TokenRequest request;
+    /**
+     * Scopes for {@link TokenGenerator#createOAuthClientToken(Collection)}.
+     */
+    private final @Nullable Collection<String> scopes;
+    private final Object[] values;
+    private final int hash;
+
+    private TokenRequestKey(TokenRequest request, Collection<String> scopes, Object[] values) {
+        this.request = request;
+        this.scopes = scopes;
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    static TokenRequestKey of(TokenRequest r) {
+        Object[] values = new Object[FIELDS.length+1];
+        values[0] = CREATE_TOKEN;
+        TokenRequest copy = new TokenRequest();
+        try {
+            for (int i=0; i<FIELDS.length; i++) {
+                Field f = FIELDS[i];
+                Object v = f.get(r);
+                values[i+1] = canonicalize(v);
+                Object c = copyOf(v);
+                f.set(copy, f.getType().isInstance(c) ? c : v);
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+        return new TokenRequestKey(copy,null,values);
+    }
+
+    static TokenRequestKey ofClientToken(Collection<String> scopes) {
+        List<String> copy = Collections.unmodifiableList(new ArrayList<String>(scopes));
+        return new TokenRequestKey(null,copy,new Object[]{CREATE_OAUTH_CLIENT_TOKEN,canonicalize(copy)});
+    }
+
+    /**
+     * Copies collections, which are the mutable parts of {@link TokenRequest}.
+     */
+    private static Object copyOf(Object o) {
+        if (o instanceof Set)
+            return new LinkedHashSet<Object>((Set<?>)o);
+        if (o instanceof Collection)
+            return new ArrayList<Object>((Collection<?>)o);
+        return o;
+    }
+
+    /**
+     * Collections become sets, so that the order doesn't matter.
+     */
+    private static Object canonicalize(Object o) {
+        if (o instanceof Collection)
+            return Collections.unmodifiableSet(new HashSet<Object>((Collection<?>)o));
+        return o;
+    }
+
+    boolean isClientToken() {
+        return request==null;
+    }
+
+    TokenRequest getRequest() {
+        return request;
+    }
+
+    Collection<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * Digest of this key that's the same in every JVM, for sharing tokens across them.
+     */
+    String getDigest() {
+        StringBuilder b = new StringBuilder();
+        for (Object v : values) {
+            if (v instanceof Set) {
+                // sort to make the order consistent
+                Set<String> sorted = new TreeSet<String>();
+                for (Object o : (Set<?>)v)
+                    sorted.add(String.valueOf(o));
+                v = sorted;
+            }
+            b.append(v).append('\n');
+        }
+        return Hashing.sha256().hashString(b, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Estimated bytes of heap retained by this key, including the request it carries.
+     *
+     * @see TokenWeigher
+     */
+    long getRetainedSize() {
+        long n = TokenWeigher.align(TokenWeigher.OBJECT+4*3+4)
+               + TokenWeigher.align(TokenWeigher.ARRAY+4L*values.length);
+        for (Object v : values)
+            n += TokenWeigher.sizeOf(v);
+        if (request!=null) {
+            // the request shares the strings, but has collections of its own
+            n += TokenWeigher.align(TokenWeigher.OBJECT+4L*FIELDS.length);
+            for (Object v : values) {
+                if (v instanceof Collection)
+                    n += TokenWeigher.COLLECTION+TokenWeigher.COLLECTION_ENTRY*((Collection<?>)v).size();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TokenRequestKey)) return false;
+        TokenRequestKey that = (TokenRequestKey) o;
+        return hash==that.hash && Arrays.equals(values,that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+
+    private static final String CREATE_TOKEN = "createToken";
+    private static final String CREATE_OAUTH_CLIENT_TOKEN = "createOAuthClientToken";
+
+    /**
+     * All the instance fields of {@link TokenRequest}.
+     */
+    private static final Field[] FIELDS;
+
+    static {
+        List<Field> fields = new ArrayList<Field>();
+        for (Field f : TokenRequest.class.getDeclaredFields()) {
+            if ((f.getModifiers()&(Modifier.STATIC|Modifier.TRANSIENT))!=0)
+                continue;
+            f.setAccessible(true);
+            fields.add(f);
+        }
+        // the order of getDeclaredFields() is unspecified, and getDigest() needs a consistent order
+        Collections.sort(fields, new Comparator<Field>() {
+            public int compare(Field x, Field y) {
+                return x.getName().compareTo(y.getName());
+            }
+        });
+        FIELDS = fields.toArray(new Field[fields.size()]);
+    }
+}
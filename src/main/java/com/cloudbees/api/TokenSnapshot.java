@@ -0,0 +1,275 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthToken;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File that remembers validated tokens across restarts, so that a freshly started validator
+ * doesn't have to revalidate every token that's still in use.
+ *
+ * <p>
+ * The file is a header followed by records, each of which is
+ * the {@link TokenFingerprint} (2 longs), the expiration in milliseconds since the epoch (long),
+ * and the length (int) and the bytes of the {@link OauthToken} in JSON without the access token.
+ *
+ * <p>
+ * The file is read and indexed upon the first lookup, and the tokens themselves are
+ * parsed only when they are looked up. Each record is restored at most once, since afterward
+ * the token lives in the cache. The file isn't memory-mapped, so that it can be replaced
+ * while its records are still waiting to be restored, which Windows doesn't allow for mapped files.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TokenSnapshot {
+    private final File file;
+
+    /**
+     * Offsets of the records that are yet to be restored. Null until the file is read.
+     */
+    private volatile Map<TokenFingerprint,Integer> index;
+    private volatile ByteBuffer buf;
+
+    TokenSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Restores the token of the given fingerprint if it's in the snapshot and hasn't expired yet.
+     *
+     * @param accessToken
+     *      Set to the restored token, since the snapshot doesn't have it.
+     */
+    @CheckForNull CachedToken restore(TokenFingerprint fp, @CheckForNull String accessToken) {
+        Map<TokenFingerprint,Integer> idx = index;
+        if (idx==null)  idx = open();
+        if (idx.isEmpty())  return null;
+
+        Integer offset = idx.remove(fp);
+        ByteBuffer b = buf;
+        if (offset==null || b==null)   return null;
+
+        b = b.duplicate();
+        b.position(offset);
+        long expiration = b.getLong();
+        if (expiration<System.currentTimeMillis())
+            return null;
+        byte[] json = new byte[b.getInt()];
+        b.get(json);
+
+        try {
+            OauthToken t = TokenCodec.fromJson(json);
+            t.accessToken = accessToken;
+            return new CachedToken(t,expiration);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to restore a token from "+file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Makes sure that the token of the given fingerprint won't be restored.
+     */
+    void forget(TokenFingerprint fp) {
+        Map<TokenFingerprint,Integer> idx = index;
+        if (idx==null)  idx = open();
+        idx.remove(fp);
+    }
+
+    /**
+     * Makes sure that no more tokens will be restored.
+     */
+    synchronized void forgetAll() {
+        index = new ConcurrentHashMap<TokenFingerprint,Integer>();
+        buf = null;
+    }
+
+    /**
+     * Reads the file and indexes the records that haven't expired yet.
+     */
+    private synchronized Map<TokenFingerprint,Integer> open() {
+        if (index!=null)    return index;
+
+        Map<TokenFingerprint,Integer> idx = new ConcurrentHashMap<TokenFingerprint,Integer>();
+        // an empty file has just been created, and has nothing to restore
+        if (file.length()>0) {
+            try {
+                ByteBuffer b = read();
+                if (b.remaining()>=8 && b.getInt()==MAGIC && b.getInt()==VERSION) {
+                        long now = System.currentTimeMillis();
+                    while (b.remaining()>=RECORD_HEADER) {
+                        TokenFingerprint fp = new TokenFingerprint(b.getLong(),b.getLong());
+                        int offset = b.position();
+                        long expiration = b.getLong();
+                        int len = b.getInt();
+                        if (len<0 || len>b.remaining())
+                            break;  // truncated
+                        b.position(b.position()+len);
+                        if (expiration>=now)
+                            idx.put(fp,offset);
+                    }
+                    buf = b;
+                } else {
+                    LOGGER.warning("Ignoring "+file+" as it's not a token snapshot");
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the token snapshot "+file, e);
+                idx.clear();
+            }
+        }
+
+        if (idx.isEmpty())
+            buf = null;
+        index = idx;
+        return idx;
+    }
+
+    private ByteBuffer read() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel ch = in.getChannel();
+            if (ch.size()>Integer.MAX_VALUE)
+                throw new IOException("Too large: "+ch.size());
+            ByteBuffer b = ByteBuffer.allocate((int)ch.size());
+            while (b.hasRemaining() && ch.read(b)>=0)
+                ;
+            b.flip();
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records that haven't been restored yet, paired with the buffer they are in.
+     */
+    private synchronized Map<TokenFingerprint,Integer> pending(ByteBuffer[] b) {
+        Map<TokenFingerprint,Integer> idx = index;
+        if (idx==null)  idx = open();
+        b[0] = buf;
+        return idx;
+    }
+
+    /**
+     * Writes the valid tokens in the given cache to the file, along with the records of the current file
+     * that haven't been restored nor expired yet, so that they survive another restart.
+     *
+     * <p>
+     * The snapshot is written to a temporary file first, then renamed over the file,
+     * so that a crash in the middle doesn't leave a corrupted snapshot behind.
+     *
+     * @return
+     *      Number of tokens written.
+     */
+    int write(Map<Object,CachedToken> cache) throws IOException {
+        File tmp = new File(file.getPath()+".tmp");
+        int n = 0;
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel ch = out.getChannel();
+            ByteBuffer b = ByteBuffer.allocate(BUFFER_SIZE);
+            b.putInt(MAGIC).putInt(VERSION);
+
+            long now = System.currentTimeMillis();
+            Set<TokenFingerprint> written = new HashSet<TokenFingerprint>();
+            for (Map.Entry<Object,CachedToken> e : cache.entrySet()) {
+                CachedToken c = e.getValue();
+                if (!c.isValid() || c.getExpiration()<now)
+                    continue;
+
+                OauthToken t = c.toOauthToken();
+                t.accessToken = null;   // never write secrets to the disk
+                byte[] json = TokenCodec.toJson(t);
+                TokenFingerprint fp = fingerprintOf(e.getKey());
+                if (!written.add(fp))
+                    continue;
+
+                b = reserve(ch,b,RECORD_HEADER+json.length);
+                b.putLong(fp.getHi()).putLong(fp.getLo())
+                 .putLong(c.getExpiration())
+                 .putInt(json.length).put(json);
+                n++;
+            }
+
+            ByteBuffer[] src = new ByteBuffer[1];
+            for (Map.Entry<TokenFingerprint,Integer> e : pending(src).entrySet()) {
+                TokenFingerprint fp = e.getKey();
+                if (src[0]==null || written.contains(fp))
+                    continue;
+
+                ByteBuffer r = src[0].duplicate();
+                r.position(e.getValue());
+                long expiration = r.getLong();
+                int len = r.getInt();
+                if (expiration<now)
+                    continue;
+                r.limit(r.position()+len);
+
+                b = reserve(ch,b,RECORD_HEADER+len);
+                b.putLong(fp.getHi()).putLong(fp.getLo())
+                 .putLong(expiration)
+                 .putInt(len).put(r);
+                n++;
+            }
+            flush(ch,b);
+            ch.force(false);
+        } finally {
+            out.close();
+        }
+
+        // File.renameTo doesn't replace an existing file on Windows
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Failed to rename "+tmp+" to "+file);
+        return n;
+    }
+
+    /**
+     * Makes room for the given number of bytes in the buffer, flushing it or allocating a larger one for an unusually large token.
+     */
+    private static ByteBuffer reserve(FileChannel ch, ByteBuffer b, int size) throws IOException {
+        if (b.remaining()<size) {
+            flush(ch,b);
+            if (b.remaining()<size)
+                b = ByteBuffer.allocate(size);
+        }
+        return b;
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer b) throws IOException {
+        b.flip();
+        while (b.hasRemaining())
+            ch.write(b);
+        b.clear();
+    }
+
+    private static TokenFingerprint fingerprintOf(Object key) {
+        return key instanceof TokenFingerprint ? (TokenFingerprint)key : TokenFingerprint.of((String)key);
+    }
+
+    /**
+     * "TKSN"
+     */
+    private static final int MAGIC = 0x544B534E;
+    private static final int VERSION = 1;
+
+    /**
+     * Fingerprint, expiration, and length.
+     */
+    private static final int RECORD_HEADER = 8*3+4;
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private static final Logger LOGGER = Logger.getLogger(TokenSnapshot.class.getName());
+}
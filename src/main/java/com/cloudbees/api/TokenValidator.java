@@ -4,8 +4,16 @@ import com.cloudbees.api.oauth.OauthClient;
 import com.cloudbees.api.oauth.OauthClientException;
 import com.cloudbees.api.oauth.OauthToken;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import javax.annotation.CheckForNull;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Base interface for various token validators.
@@ -24,7 +32,7 @@ public abstract class TokenValidator {
      * @return null if the token is invalid such as expired or unknown to the CloudBees OAuth server or the expected
      * scopes are not found.
      */
-    public final @CheckForNull OauthToken validateToken(String token, String... scopes) throws OauthClientException {
+    public @CheckForNull OauthToken validateToken(String token, String... scopes) throws OauthClientException {
         OauthToken oauthToken = validateToken(token);
         if (oauthToken==null)   return null;
 
@@ -46,11 +54,233 @@ public abstract class TokenValidator {
      */
     public abstract @CheckForNull OauthToken validateToken(String token) throws OauthClientException;
 
+    /**
+     * Asynchronous version of {@link #validateToken(String)}.
+     *
+     * <p>
+     * This default implementation validates the token on the calling thread before returning
+     * a completed future, but cached validators complete hits immediately and validate misses
+     * in the background.
+     *
+     * @return
+     *      Future that yields null if the token is invalid, or fails with {@link OauthClientException}.
+     */
+    public ListenableFuture<OauthToken> validateTokenAsync(String token) {
+        try {
+            return Futures.immediateFuture(validateToken(token));
+        } catch (OauthClientException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Works like {@link #validateToken(String)} but returns a read-only view of the token.
+     *
+     * <p>
+     * Cached validators return the view straight out of the cache without copying anything,
+     * so prefer this method on hot paths that only need to look at the token.
+     *
+     * @param token non-null token
+     * @return null if the token is invalid such as expired or unknown to the CloudBees OAuth server.
+     */
+    public @CheckForNull OauthTokenView validateTokenView(String token) throws OauthClientException {
+        OauthToken t = validateToken(token);
+        return t!=null ? new CachedToken(t) : null;
+    }
+
+    /**
+     * Works like {@link #validateToken(String, String...)} but returns a read-only view of the token.
+     *
+     * @see #validateTokenView(String)
+     */
+    public final @CheckForNull OauthTokenView validateTokenView(String token, String... scopes) throws OauthClientException {
+        OauthTokenView v = validateTokenView(token);
+        if (v==null)   return null;
+
+        if (v.validateScopes(scopes))
+            return v;
+        else
+            return null;
+    }
+
+    /**
+     * Validates a batch of tokens.
+     *
+     * <p>
+     * This default implementation validates them one by one, but cached validators answer cache hits
+     * in one pass and validate the rest concurrently.
+     *
+     * @param tokens
+     *      Duplicates are validated only once.
+     * @return
+     *      Map from each given token to the result of {@link #validateToken(String)}, which is null
+     *      for invalid tokens. Iterates in the order of the given tokens.
+     */
+    public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+        Map<String,OauthToken> r = new LinkedHashMap<String,OauthToken>();
+        for (String t : tokens) {
+            if (!r.containsKey(t))
+                r.put(t,validateToken(t));
+        }
+        return r;
+    }
+
+    /**
+     * Forgets what's known about the given token, so that it gets validated again the next time it's presented,
+     * such as when the token is revoked.
+     *
+     * <p>
+     * This default implementation does nothing, since there's nothing to forget without caching.
+     */
+    public void invalidate(String token) {
+    }
+
+    /**
+     * Forgets all the tokens of the given account, such as when the account is suspended.
+     *
+     * @see #invalidate(String)
+     */
+    public void invalidateAccount(String account) {
+    }
+
+    /**
+     * Forgets all the tokens that have the given scope, such as when the scope is withdrawn.
+     *
+     * @see #invalidate(String)
+     */
+    public void invalidateScope(String scope) {
+    }
+
+    /**
+     * Turns the view into {@link OauthToken}, filling in the access token if the view didn't retain it.
+     */
+    /*package*/ static OauthToken toOauthToken(OauthTokenView v, String token) {
+        OauthToken t = v.toOauthToken();
+        if (t.accessToken==null)
+            t.accessToken = token;
+        return t;
+    }
+
     /**
      * Wraps this {@link TokenValidator} by adding caching.
+     *
+     * <p>
+     * Each token is cached until it expires. Tokens that come without a lifetime
+     * ({@code expires_in} of 0) are validated every time they are presented.
      */
     public TokenValidator withCache(CacheBuilder<Object,Object>builder) {
-        return new CachedTokenValidator(builder,this);
+        return withCache(builder,new TokenCacheOptions());
+    }
+
+    /**
+     * Wraps this {@link TokenValidator} by adding caching, with additional options
+     * such as how invalid tokens are remembered.
+     */
+    public TokenValidator withCache(CacheBuilder<Object,Object> builder, TokenCacheOptions options) {
+        return new CachedTokenValidator(builder,options,this);
+    }
+
+    /**
+     * Wraps this {@link TokenValidator} so that the tokens validated at around the same time are
+     * validated together. Put this under the cache, so that a storm of cache misses makes fewer calls
+     * to the OAuth server:
+     *
+     * <pre>
+     * TokenValidator.from(client).withBatching(5, MILLISECONDS, 100, executor).withCache()
+     * </pre>
+     *
+     * <p>
+     * If this validator is a {@link BatchTokenValidator}, each batch is validated in one call.
+     * Otherwise the tokens are validated one by one, in parallel up to the number of threads of the executor.
+     *
+     * @param window
+     *      How long the first token of a batch waits for others to join.
+     * @param maxBatchSize
+     *      Once this many tokens are collected, they are sent without waiting for the window to pass.
+     * @param executor
+     *      Sends the batches. The window is timed separately, so it's kept even while all the threads are busy.
+     */
+    public TokenValidator withBatching(long window, TimeUnit unit, int maxBatchSize, Executor executor) {
+        if (window<0)
+            throw new IllegalArgumentException("Invalid window: "+window);
+        if (maxBatchSize<1)
+            throw new IllegalArgumentException("Invalid batch size: "+maxBatchSize);
+        return new BatchingTokenValidator(this, unit.toNanos(window), maxBatchSize, executor);
+    }
+
+    /**
+     * Wraps this {@link TokenValidator} so that it's called only as much as the given {@link UpstreamLimiter} allows.
+     * Calls over the limit fail with {@link UpstreamLimitException}.
+     *
+     * <p>
+     * If this is a {@link BatchTokenValidator}, so is the result, and a whole batch counts as one call.
+     */
+    public TokenValidator withLimiter(final UpstreamLimiter limiter) {
+        final TokenValidator base = this;
+        if (base instanceof BatchTokenValidator) {
+            return new BatchTokenValidator() {
+                @Override
+                public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+                    limiter.acquire();
+                    try {
+                        return base.validateTokens(tokens);
+                    } finally {
+                        limiter.release();
+                    }
+                }
+
+                @Override
+                public OauthToken validateToken(String token) throws OauthClientException {
+                    limiter.acquire();
+                    try {
+                        return base.validateToken(token);
+                    } finally {
+                        limiter.release();
+                    }
+                }
+
+                @Override
+                public void invalidate(String token) {
+                    base.invalidate(token);
+                }
+
+                @Override
+                public void invalidateAccount(String account) {
+                    base.invalidateAccount(account);
+                }
+
+                @Override
+                public void invalidateScope(String scope) {
+                    base.invalidateScope(scope);
+                }
+            };
+        }
+        return new TokenValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                limiter.acquire();
+                try {
+                    return base.validateToken(token);
+                } finally {
+                    limiter.release();
+                }
+            }
+
+            @Override
+            public void invalidate(String token) {
+                base.invalidate(token);
+            }
+
+            @Override
+            public void invalidateAccount(String account) {
+                base.invalidateAccount(account);
+            }
+
+            @Override
+            public void invalidateScope(String scope) {
+                base.invalidateScope(scope);
+            }
+        };
     }
 
     /**
@@ -75,6 +305,39 @@ public abstract class TokenValidator {
         };
     }
 
+    /**
+     * Wraps the {@link OauthClient} into {@link TokenValidator} that counts the calls to the OAuth server
+     * and their latencies into the given {@link TokenMetrics}.
+     *
+     * The resulting validator does no caching.
+     */
+    public static TokenValidator from(final OauthClient client, final TokenMetrics metrics) {
+        return new TokenValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                long start = System.nanoTime();
+                boolean success = false;
+                try {
+                    OauthToken t = client.validateToken(token);
+                    success = true;
+                    return t;
+                } finally {
+                    metrics.recordLoad(success,System.nanoTime()-start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the {@link OauthClient} into {@link TokenValidator} that calls the OAuth server
+     * only as much as the given {@link UpstreamLimiter} allows.
+     *
+     * The resulting validator does no caching.
+     */
+    public static TokenValidator from(OauthClient client, UpstreamLimiter limiter) {
+        return from(client).withLimiter(limiter);
+    }
+
     public static TokenValidator from(BeesClient bees) {
         return from(bees.getOauthClient());
     }
@@ -86,4 +349,55 @@ public abstract class TokenValidator {
     public TokenValidator or(TokenValidator that) {
         return new CascadingTokenValidator(this,that);
     }
+
+    /**
+     * Creates a new {@link TokenValidator} that tries both this token validator and the specified token validator,
+     * like {@link #or(TokenValidator)} does, but remembers the families of tokens that only the specified
+     * token validator knows. Tokens of those families then go straight to the specified token validator.
+     *
+     * <p>
+     * This saves calls to this validator, which would only fail, in a long chain of validators.
+     *
+     * @param classifier
+     *      Determines the families of tokens, such as {@link TokenClassifier#FINGERPRINT} to remember
+     *      individual tokens, or {@link TokenClassifier#prefix(int)} to remember token prefixes.
+     */
+    public TokenValidator or(TokenValidator that, TokenClassifier classifier) {
+        return new CascadingTokenValidator(this,that,classifier);
+    }
+
+    /**
+     * Creates a new {@link TokenValidator} that asks both this token validator and the specified token validator
+     * at the same time, and takes the first non-null answer. The call that loses the race is cancelled.
+     *
+     * <p>
+     * This is useful when this validator is slow and the other one knows a good portion of tokens.
+     *
+     * @param executor
+     *      Runs the calls to the two validators.
+     */
+    public TokenValidator or(TokenValidator that, ExecutorService executor) {
+        return new RacingTokenValidator(this,that,executor,0);
+    }
+
+    /**
+     * Creates a new {@link TokenValidator} that tries this token validator first, and if it hasn't answered
+     * within the given percentile of its recent latencies, asks the specified token validator as well.
+     * The first non-null answer wins, and the call that loses the race is cancelled.
+     *
+     * <p>
+     * Compared to {@link #or(TokenValidator, ExecutorService)}, this only puts extra load on the other validator
+     * for the slow tail of this validator.
+     *
+     * @param percentile
+     *      Between 0 and 1 (exclusive), such as 0.95 to ask the other validator when this one is slower than
+     *      95% of its recent calls.
+     * @param executor
+     *      Runs the calls to the two validators.
+     */
+    public TokenValidator orHedged(TokenValidator that, ExecutorService executor, double percentile) {
+        if (percentile<=0 || percentile>=1)
+            throw new IllegalArgumentException("Percentile must be between 0 and 1: "+percentile);
+        return new RacingTokenValidator(this,that,executor,percentile);
+    }
 }
@@ -0,0 +1,75 @@
+package com.cloudbees.api;
+
+import com.google.common.cache.Weigher;
+
+import java.util.Collection;
+
+/**
+ * Estimates how many bytes of heap each cache entry retains, for sizing the caches in bytes
+ * instead of entries.
+ *
+ * <p>
+ * The estimate assumes a 64-bit JVM with compressed references, and counts the key, the {@link CachedToken},
+ * the {@link com.cloudbees.api.oauth.OauthToken} in it, their strings, and the overhead of the cache entry itself.
+ * Strings shared with other objects are counted in full, so this errs on the larger side.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+final class TokenWeigher implements Weigher<Object,Object> {
+    private TokenWeigher() {}
+
+    public int weigh(Object key, Object value) {
+        long n = ENTRY_OVERHEAD+sizeOf(key);
+        if (value instanceof CachedToken)
+            n += ((CachedToken)value).getRetainedSize();
+        else
+            n += sizeOf(value);
+        return (int)Math.min(n,Integer.MAX_VALUE);
+    }
+
+    static long sizeOf(Object o) {
+        if (o==null)
+            return 0;
+        if (o instanceof String)
+            return align(STRING+ARRAY+2L*((String)o).length());
+        if (o instanceof TokenFingerprint)
+            return align(OBJECT+16);
+        if (o instanceof TokenRequestKey)
+            return ((TokenRequestKey)o).getRetainedSize();
+        if (o instanceof Collection) {
+            long n = COLLECTION;
+            for (Object e : (Collection<?>)o)
+                n += COLLECTION_ENTRY+sizeOf(e);
+            return n;
+        }
+        return OBJECT+4;     // Boolean and such
+    }
+
+    static long align(long n) {
+        return (n+7)&~7L;
+    }
+
+    static final TokenWeigher INSTANCE = new TokenWeigher();
+
+    /**
+     * Object header.
+     */
+    static final int OBJECT = 12;
+    /**
+     * Array header.
+     */
+    static final int ARRAY = 16;
+    /**
+     * {@link String} without its characters.
+     */
+    static final int STRING = 24;
+    /**
+     * Hash-based collection without its entries.
+     */
+    static final int COLLECTION = 64;
+    static final int COLLECTION_ENTRY = 32;
+    /**
+     * Entry in the cache, including its share of the hash table, and the queues for eviction and expiration.
+     */
+    static final int ENTRY_OVERHEAD = 64;
+}
@@ -0,0 +1,24 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+
+/**
+ * Thrown when {@link UpstreamLimiter} didn't let a call through to the OAuth server.
+ *
+ * <p>
+ * The server wasn't even asked, so this says nothing about the token. Callers typically
+ * respond with something like "503 Service Unavailable" and let the client retry.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class UpstreamLimitException extends OauthClientException {
+    public UpstreamLimitException(String message) {
+        super(message);
+    }
+
+    public UpstreamLimitException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
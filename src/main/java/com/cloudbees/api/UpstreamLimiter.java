@@ -0,0 +1,192 @@
+package com.cloudbees.api;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Bounds how hard we hit the OAuth server, so that a storm of cache misses cannot exhaust
+ * the rate quota of the OAuth client and get it throttled for everyone.
+ *
+ * <p>
+ * Calls are limited by a token bucket, which allows a burst and then the given rate,
+ * and by the number of calls in flight at once. A call over the limit waits up to
+ * {@linkplain #withMaxWait(long, TimeUnit) the maximum wait}, and if it still can't go,
+ * fails with {@link UpstreamLimitException} without reaching the server.
+ *
+ * <p>
+ * Apply this with {@link TokenValidator#from(com.cloudbees.api.oauth.OauthClient, UpstreamLimiter)},
+ * {@link TokenGenerator#from(com.cloudbees.api.oauth.OauthClient, UpstreamLimiter)}, or {@code withLimiter}.
+ * Since the quota is per OAuth client, share one instance between the validator and the generator
+ * that use the same client. Put caching in front of the limited one, so that only misses are limited.
+ *
+ * <p>
+ * The settings of a limiter never change. Each {@code withXyz} method returns a new limiter
+ * with the setting changed, which starts with a full bucket and no calls in flight.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class UpstreamLimiter {
+    /**
+     * Nanoseconds it takes to earn a permit, or 0 for no rate limit.
+     */
+    private final double interval;
+    private final double burst;
+    private final @CheckForNull Semaphore inFlight;
+    private final int maxInFlight;
+    private final long maxWait;
+    private final @CheckForNull TokenMetrics metrics;
+
+    /**
+     * Permits currently in the bucket. Negative when callers have reserved permits
+     * that are yet to be earned. Guarded by {@code this}.
+     */
+    private double permits;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a limiter that doesn't limit anything, to be configured by the {@code withXyz} methods.
+     */
+    public UpstreamLimiter() {
+        this(0,0,0,0,null);
+    }
+
+    private UpstreamLimiter(double interval, double burst, int maxInFlight, long maxWait, @CheckForNull TokenMetrics metrics) {
+        this.interval = interval;
+        this.burst = this.permits = burst;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = maxInFlight>0 ? new Semaphore(maxInFlight) : null;
+        this.maxWait = maxWait;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Allows the given number of calls per second on average, and up to {@code burst} calls at once
+     * after a quiet period. No rate limit by default.
+     */
+    public UpstreamLimiter withRate(double permitsPerSecond, int burst) {
+        if (permitsPerSecond<=0 || burst<1)
+            throw new IllegalArgumentException("Invalid rate "+permitsPerSecond+"/s with burst "+burst);
+        return new UpstreamLimiter(TimeUnit.SECONDS.toNanos(1)/permitsPerSecond, burst, maxInFlight, maxWait, metrics);
+    }
+
+    /**
+     * Allows up to the given number of calls to the server at once. No limit by default.
+     */
+    public UpstreamLimiter withMaxInFlight(int n) {
+        if (n<1)
+            throw new IllegalArgumentException("Invalid number of calls in flight: "+n);
+        return new UpstreamLimiter(interval, burst, n, maxWait, metrics);
+    }
+
+    /**
+     * How long a call over the limit waits for its turn before it's rejected.
+     * 0 by default, which rejects calls over the limit right away.
+     */
+    public UpstreamLimiter withMaxWait(long timeout, TimeUnit unit) {
+        return new UpstreamLimiter(interval, burst, maxInFlight, unit.toNanos(timeout), metrics);
+    }
+
+    /**
+     * Counts the calls that had to wait as {@link TokenMetrics.Event#THROTTLED} and the calls
+     * rejected as {@link TokenMetrics.Event#REJECTED}.
+     *
+     * @param metrics
+     *      null to not count them, which is the default.
+     */
+    public UpstreamLimiter withMetrics(@CheckForNull TokenMetrics metrics) {
+        return new UpstreamLimiter(interval, burst, maxInFlight, maxWait, metrics);
+    }
+
+    /**
+     * Number of calls to the server in progress, or -1 if they aren't limited.
+     */
+    public int getInFlight() {
+        return inFlight==null ? -1 : maxInFlight-inFlight.availablePermits();
+    }
+
+    /**
+     * Waits until a call can be made to the server.
+     * Every successful call must be followed by {@link #release()}.
+     *
+     * @throws UpstreamLimitException
+     *      if the call can't be made within the maximum wait.
+     */
+    /*package*/ void acquire() throws UpstreamLimitException {
+        long now = System.nanoTime();
+        long deadline = now+maxWait;
+        boolean waited = false;
+        try {
+            if (inFlight!=null && !inFlight.tryAcquire()) {
+                waited = true;
+                if (maxWait<=0 || !inFlight.tryAcquire(maxWait,NANOSECONDS))
+                    throw reject("Already "+maxInFlight+" calls in flight to the OAuth server");
+                now = System.nanoTime();
+            }
+
+            long wait = reserve(now,deadline);
+            if (wait<0) {
+                if (inFlight!=null)
+                    inFlight.release();
+                throw reject("Over the rate limit of the OAuth server");
+            }
+            if (wait>0) {
+                waited = true;
+                try {
+                    NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    // the call isn't made, so it shouldn't use up the permit either
+                    unreserve();
+                    if (inFlight!=null)
+                        inFlight.release();
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UpstreamLimitException("Interrupted while waiting to call the OAuth server",e);
+        }
+
+        if (waited && metrics!=null)
+            metrics.record(TokenMetrics.Event.THROTTLED);
+    }
+
+    /*package*/ void release() {
+        if (inFlight!=null)
+            inFlight.release();
+    }
+
+    private UpstreamLimitException reject(String message) {
+        if (metrics!=null)
+            metrics.record(TokenMetrics.Event.REJECTED);
+        return new UpstreamLimitException(message);
+    }
+
+    /**
+     * Takes a permit from the bucket.
+     *
+     * @return
+     *      Nanoseconds to wait until the permit is earned, or -1 if that's past the deadline,
+     *      in which case nothing is taken.
+     */
+    private synchronized long reserve(long now, long deadline) {
+        if (interval==0)    return 0;
+        permits = Math.min(burst, permits+(now-lastRefill)/interval);
+        lastRefill = now;
+
+        long wait = permits>=1 ? 0 : (long)Math.ceil((1-permits)*interval);
+        if (now+wait-deadline > 0)
+            return -1;
+        permits--;
+        return wait;
+    }
+
+    /**
+     * Puts back the permit taken by {@link #reserve(long, long)}.
+     */
+    private synchronized void unreserve() {
+        permits = Math.min(burst, permits+1);
+    }
+}
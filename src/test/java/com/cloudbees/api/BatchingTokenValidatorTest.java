@@ -0,0 +1,145 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.CachedTokenValidatorTest.CountingValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.*;
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class BatchingTokenValidatorTest {
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tokens within the window go out together, and a full batch goes out right away.
+     */
+    @Test
+    public void batch() throws Exception {
+        RecordingValidator base = new RecordingValidator();
+        TokenValidator v = base.withBatching(100, MILLISECONDS, 3, executor);
+
+        List<ListenableFuture<OauthToken>> futures = new ArrayList<ListenableFuture<OauthToken>>();
+        for (String t : Arrays.asList("account=a", "account=b", "account=a", "invalid", "account=c"))
+            futures.add(v.validateTokenAsync(t));
+        assertEquals("a", futures.get(0).get().account);
+        assertEquals("a", futures.get(2).get().account);
+        assertNull(futures.get(3).get());
+        assertEquals("c", futures.get(4).get().account);
+
+        assertEquals(2, base.batches.size());
+        assertEquals(Arrays.asList("account=a", "account=b", "invalid"), base.batches.get(0));
+        assertEquals(Arrays.asList("account=c"), base.batches.get(1));
+    }
+
+    /**
+     * Validators that can't do batches get the tokens one by one, and failures reach the callers.
+     */
+    @Test
+    public void single() throws Exception {
+        CountingValidator base = new CountingValidator();
+        TokenValidator v = base.withBatching(10, MILLISECONDS, 100, executor);
+
+        Map<String,OauthToken> r = v.validateTokens(Arrays.asList("account=a", "account=b", "invalid"));
+        assertEquals("b", r.get("account=b").account);
+        assertNull(r.get("invalid"));
+        assertEquals(3, base.count.get());
+
+        try {
+            v.validateToken("malformed");
+            fail();
+        } catch (OauthClientException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The window is kept even when all the threads of the executor are busy validating earlier batches.
+     */
+    @Test
+    public void busy() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1), release = new CountDownLatch(1);
+        RecordingValidator base = new RecordingValidator() {
+            @Override
+            public Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+                sent.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new OauthClientException("interrupted",e);
+                }
+                return super.validateTokens(tokens);
+            }
+        };
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            TokenValidator v = base.withBatching(10, MILLISECONDS, 100, single);
+            ListenableFuture<OauthToken> a = v.validateTokenAsync("account=a");
+            sent.await();
+            ListenableFuture<OauthToken> b = v.validateTokenAsync("account=b");
+            Thread.sleep(100);
+            ListenableFuture<OauthToken> c = v.validateTokenAsync("account=c");
+            release.countDown();
+
+            assertEquals("a", a.get().account);
+            assertEquals("b", b.get().account);
+            assertEquals("c", c.get().account);
+            assertEquals(3, base.batches.size());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    /**
+     * Settings that would never send anything are rejected.
+     */
+    @Test
+    public void invalidSettings() {
+        try {
+            new MockTokenValidator().withBatching(10, MILLISECONDS, 0, executor);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new MockTokenValidator().withBatching(-1, MILLISECONDS, 10, executor);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    static class RecordingValidator extends BatchTokenValidator {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        @Override
+        public synchronized Map<String,OauthToken> validateTokens(Collection<String> tokens) throws OauthClientException {
+            batches.add(new ArrayList<String>(tokens));
+            Map<String,OauthToken> r = new LinkedHashMap<String,OauthToken>();
+            for (String t : tokens)
+                r.put(t,new MockTokenValidator().validateToken(t));
+            return r;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.cr.Credential;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class CachedTokenGeneratorTest {
+    /**
+     * Once a token is half expired, callers keep getting it while exactly one refresh runs in the background.
+     */
+    @Test
+    public void refreshAhead() throws Exception {
+        CountingGenerator base = new CountingGenerator(1);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        TokenGenerator g = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withExecutor(queue(tasks)));
+
+        String first = g.createOAuthClientToken("read").accessToken;
+        assertEquals(1, base.count);
+
+        Thread.sleep(600);  // past the half life but not expired yet
+        assertEquals(first, g.createOAuthClientToken("read").accessToken);
+        assertEquals(first, g.createOAuthClientToken("read").accessToken);
+        assertEquals("only one refresh should be scheduled", 1, tasks.size());
+        assertEquals(1, base.count);
+
+        tasks.remove(0).run();
+        assertEquals(2, base.count);
+        String second = g.createOAuthClientToken("read").accessToken;
+        assertFalse(first.equals(second));
+    }
+
+    /**
+     * If the background refresh fails, the current token keeps being served and a later call retries.
+     */
+    @Test
+    public void failedRefresh() throws Exception {
+        CountingGenerator base = new CountingGenerator(1);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        TokenGenerator g = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withExecutor(queue(tasks)));
+
+        String first = g.createOAuthClientToken("read").accessToken;
+        Thread.sleep(600);
+        base.fail = true;
+        assertEquals(first, g.createOAuthClientToken("read").accessToken);
+        tasks.remove(0).run();
+
+        assertEquals(first, g.createOAuthClientToken("read").accessToken);
+        assertEquals("failed refresh should be retried", 1, tasks.size());
+    }
+
+    /**
+     * Requests that only differ in the order of scopes share the same token.
+     */
+    @Test
+    public void scopeOrder() throws Exception {
+        CountingGenerator base = new CountingGenerator(3600);
+        TokenGenerator g = base.withCache();
+
+        OauthToken t = g.createOAuthClientToken("read", "write");
+        assertEquals(t.accessToken, g.createOAuthClientToken("write", "read").accessToken);
+        assertFalse(t.accessToken.equals(g.createOAuthClientToken("read").accessToken));
+        assertEquals(2, base.count);
+
+        TokenRequest r1 = new TokenRequest().withAccountName("acme");
+        TokenRequest r2 = new TokenRequest().withAccountName("acme");
+        assertEquals(g.createToken(r1).accessToken, g.createToken(r2).accessToken);
+        assertFalse(g.createToken(r1).accessToken.equals(g.createToken(new TokenRequest().withAccountName("other")).accessToken));
+    }
+
+    /**
+     * Changing the request after the call doesn't change what the cached token is for.
+     */
+    @Test
+    public void mutatedRequest() throws Exception {
+        TokenRequest r = new TokenRequest().withAccountName("acme").withScope("read");
+        TokenRequestKey key = TokenRequestKey.of(r);
+        r.withScope("admin");
+
+        assertEquals(TokenRequestKey.of(new TokenRequest().withAccountName("acme").withScope("read")), key);
+        assertEquals(1, key.getRequest().getScopes().size());
+
+        List<String> scopes = new ArrayList<String>();
+        scopes.add("read");
+        key = TokenRequestKey.ofClientToken(scopes);
+        scopes.add("admin");
+        assertEquals(1, key.getScopes().size());
+    }
+
+    private static Executor queue(final List<Runnable> tasks) {
+        return new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+    }
+
+    /**
+     * A token created by one node is used by the other nodes through the shared store.
+     */
+    @Test
+    public void shared() throws Exception {
+        SharedTokenStore store = SharedTokenStore.loopback();
+        CountingGenerator base1 = new CountingGenerator(3600);
+        CountingGenerator base2 = new CountingGenerator(3600);
+        TokenGenerator g1 = base1.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withSharedStore(store, MoreExecutors.sameThreadExecutor()));
+        TokenGenerator g2 = base2.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withSharedStore(store, MoreExecutors.sameThreadExecutor()));
+
+        String t = g1.createOAuthClientToken("read", "write").accessToken;
+        assertEquals(t, g2.createOAuthClientToken("write", "read").accessToken);
+        assertEquals(1, base1.count);
+        assertEquals(0, base2.count);
+    }
+
+    /**
+     * The credential reuses its token, and replaces it in the background before it expires.
+     */
+    @Test
+    public void credential() throws Exception {
+        CountingGenerator base = new CountingGenerator(2);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Credential c = base.asCredential(new TokenRequest().withAccountName("acme"), scheduler);
+            String first = authorize(c);
+            assertEquals(first, authorize(c));
+            assertEquals(1, base.count);
+
+            Thread.sleep(1300);     // past the half life
+            assertEquals(2, base.count);
+            assertFalse(first.equals(authorize(c)));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Tokens without a lifetime aren't kept, and no refresh is scheduled for them.
+     */
+    @Test
+    public void credentialNoLifetime() throws Exception {
+        CountingGenerator base = new CountingGenerator(0);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            Credential c = base.asCredential(new TokenRequest().withAccountName("acme"), scheduler);
+            assertFalse(authorize(c).equals(authorize(c)));
+            assertEquals(2, base.count);
+            assertEquals(0, scheduler.getQueue().size());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the authorization header the credential sets.
+     */
+    private static String authorize(Credential c) throws Exception {
+        final String[] header = new String[1];
+        c.authorizeRequest(new HttpURLConnection(new URL("http://localhost/")) {
+            @Override
+            public void setRequestProperty(String key, String value) {
+                if (key.equals("Authorization"))
+                    header[0] = value;
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+
+            @Override
+            public void connect() {
+            }
+        });
+        return header[0];
+    }
+
+    static class CountingGenerator extends MockTokenGenerator {
+        private final int expiresIn;
+        volatile int count;
+        volatile boolean fail;
+
+        CountingGenerator(int expiresIn) {
+            super("acme");
+            this.expiresIn = expiresIn;
+        }
+
+        @Override
+        public OauthToken createToken(TokenRequest r) throws OauthClientException {
+            if (fail)
+                throw new OauthClientException("Grand Central is down");
+            OauthToken t = super.createToken(r);
+            t.accessToken += ",uid="+(count++);
+            t.setExpiresIn(expiresIn);
+            return t;
+        }
+
+        @Override
+        public OauthToken createOAuthClientToken(Collection<String> scopes) throws OauthClientException {
+            if (fail)
+                throw new OauthClientException("Grand Central is down");
+            OauthToken t = super.createOAuthClientToken(scopes);
+            t.accessToken += ",uid="+(count++);
+            t.setExpiresIn(expiresIn);
+            return t;
+        }
+    }
+}
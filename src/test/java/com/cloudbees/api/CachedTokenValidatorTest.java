@@ -0,0 +1,654 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.*;
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class CachedTokenValidatorTest {
+    private final CountingValidator base = new CountingValidator();
+
+    /**
+     * Valid tokens are only validated once.
+     */
+    @Test
+    public void hit() throws Exception {
+        TokenValidator v = base.withCache();
+        assertEquals("kohsuke", v.validateToken("account=kohsuke").account);
+        assertEquals("kohsuke", v.validateToken("account=kohsuke").account);
+        assertEquals(1, base.count.get());
+    }
+
+    /**
+     * Tokens without a lifetime are good, but validated every time.
+     */
+    @Test
+    public void noLifetime() throws Exception {
+        CountingValidator base = new CountingValidator(0);
+        TokenValidator v = base.withCache();
+        assertEquals("kohsuke", v.validateToken("account=kohsuke").account);
+        assertEquals("kohsuke", v.validateTokenView("account=kohsuke").getAccount());
+        assertEquals(2, base.count.get());
+    }
+
+    /**
+     * Hits share the same read-only view, while {@link TokenValidator#validateToken(String)} still hands out copies.
+     */
+    @Test
+    public void view() throws Exception {
+        TokenValidator v = base.withCache();
+        OauthTokenView view = v.validateTokenView("account=kohsuke");
+        assertSame(view, v.validateTokenView("account=kohsuke"));
+        assertEquals("kohsuke", view.getAccount());
+
+        OauthToken t = v.validateToken("account=kohsuke");
+        t.account = "somebody-else";
+        assertEquals("kohsuke", v.validateToken("account=kohsuke").account);
+        assertEquals(1, base.count.get());
+    }
+
+    /**
+     * Scope checks give the same answers once they are memoized.
+     */
+    @Test
+    public void scopes() throws Exception {
+        TokenValidator v = base.withCache();
+        String token = "account=kohsuke,scope=read write";
+        for (int i=0; i<2; i++) {
+            assertNotNull(v.validateToken(token, "read"));
+            assertNotNull(v.validateToken(token, "read", "write"));
+            assertNull(v.validateToken(token, "read", "admin"));
+            assertNull(v.validateToken(token, "admin"));
+            assertNotNull(v.validateTokenView(token, "write"));
+        }
+        assertEquals(1, base.count.get());
+    }
+
+    /**
+     * Fingerprint keys behave the same, except that the cache doesn't keep the secret.
+     */
+    @Test
+    public void fingerprint() throws Exception {
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withFingerprintKeys(true));
+        String token = "account=kohsuke,access_token=secret,scope=read write,token_type=bearer";
+        OauthToken t = v.validateToken(token, "write");
+        assertEquals(token, t.accessToken);
+        assertEquals("bearer", t.tokenType);
+        assertTrue(t.getExpiresIn()>0);
+        OauthTokenView view = v.validateTokenView(token, "read", "write");
+        assertNull(view.getAccessToken());
+        assertEquals("kohsuke", view.getAccount());
+        assertNull(v.validateTokenView(token, "admin"));
+        assertNull(v.validateToken("invalid1"));
+        assertNull(v.validateToken("invalid1"));
+        assertEquals(2, base.count.get());
+    }
+
+    /**
+     * Invalid tokens are remembered in the negative cache, with or without the filter in front.
+     */
+    @Test
+    public void negative() throws Exception {
+        for (boolean filter : new boolean[]{false,true}) {
+            base.count.set(0);
+            TokenValidator v = base.withCache(CacheBuilder.newBuilder().maximumSize(10),
+                    new TokenCacheOptions().withNegativeFilter(filter));
+            assertNull(v.validateToken("invalid1"));
+            assertNull(v.validateToken("invalid1"));
+            assertEquals(1, base.count.get());
+
+            assertNotNull(v.validateToken("account=kohsuke"));
+            assertNotNull(v.validateToken("account=kohsuke"));
+            assertEquals(2, base.count.get());
+        }
+    }
+
+    /**
+     * Invalid tokens are forgotten after the negative TTL.
+     */
+    @Test
+    public void negativeTtl() throws Exception {
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder(),
+                new TokenCacheOptions().withNegativeCache(50, MILLISECONDS, 10));
+        assertNull(v.validateToken("invalid1"));
+        Thread.sleep(100);
+        assertNull(v.validateToken("invalid1"));
+        assertEquals(2, base.count.get());
+    }
+
+    /**
+     * Flooding a full cache with invalid tokens doesn't evict the valid ones,
+     * as the invalid ones never go into the main cache.
+     */
+    @Test
+    public void flood() throws Exception {
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder().concurrencyLevel(1).maximumSize(10), new TokenCacheOptions());
+        for (int i=0; i<10; i++)
+            v.validateToken("account=kohsuke"+i);
+        for (int i=0; i<1000; i++)
+            assertNull(v.validateToken("invalid"+i));
+        base.count.set(0);
+        for (int i=0; i<10; i++)
+            v.validateToken("account=kohsuke"+i);
+        assertEquals(0, base.count.get());
+    }
+
+    /**
+     * Bulk validation dedupes, answers hits from the cache, and loads the misses concurrently.
+     */
+    @Test
+    public void bulk() throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        try {
+            TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withExecutor(es));
+            v.validateToken("account=a");
+
+            Map<String,OauthToken> r = v.validateTokens(Arrays.asList("account=c", "account=a", "invalid", "account=b", "account=c"));
+            assertEquals(Arrays.asList("account=c", "account=a", "invalid", "account=b"), new ArrayList<String>(r.keySet()));
+            assertEquals("a", r.get("account=a").account);
+            assertEquals("c", r.get("account=c").account);
+            assertNull(r.get("invalid"));
+            assertEquals(4, base.count.get());
+
+            r = v.validateTokens(Arrays.asList("account=b", "invalid"));
+            assertEquals("b", r.get("account=b").account);
+            assertEquals(4, base.count.get());
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * A token loaded by another thread right after this one missed it isn't validated again.
+     */
+    @Test
+    public void missRace() throws Exception {
+        final ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicBoolean raced = new AtomicBoolean();
+            final TokenValidator[] v = new TokenValidator[1];
+            TokenMetrics metrics = new TokenMetrics();
+            metrics.addListener(new TokenMetrics.Listener() {
+                public void onEvent(TokenMetrics.Event event, long nanos) {
+                    if (event!=TokenMetrics.Event.MISS || !raced.compareAndSet(false,true))
+                        return;
+                    try {
+                        es.submit(new Callable<OauthToken>() {
+                            public OauthToken call() throws Exception {
+                                return v[0].validateToken("account=kohsuke");
+                            }
+                        }).get();
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            v[0] = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withMetrics(metrics));
+
+            assertEquals("kohsuke", v[0].validateToken("account=kohsuke").account);
+            assertTrue(raced.get());
+            assertEquals(1, base.count.get());
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * Concurrent asynchronous misses share one validation, and hits complete right away.
+     */
+    @Test
+    public void async() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        CountingValidator slow = new CountingValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.validateToken(token);
+            }
+        };
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        try {
+            TokenValidator v = slow.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withExecutor(es));
+            Future<OauthToken> f1 = v.validateTokenAsync("account=kohsuke");
+            Future<OauthToken> f2 = v.validateTokenAsync("account=kohsuke");
+            assertFalse(f1.isDone());
+            latch.countDown();
+
+            assertEquals("kohsuke", f1.get().account);
+            assertEquals("kohsuke", f2.get().account);
+            assertEquals(1, slow.count.get());
+
+            Future<OauthToken> f3 = v.validateTokenAsync("account=kohsuke");
+            assertTrue(f3.isDone());
+            assertNull(v.validateTokenAsync("invalid").get());
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * During an outage, expired tokens are served within the grace period, and misses fail fast.
+     */
+    @Test
+    public void outage() throws Exception {
+        final boolean[] down = new boolean[1];
+        CountingValidator flaky = new CountingValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                OauthToken t = super.validateToken(token);
+                if (down[0])
+                    throw new OauthClientException("Grand Central is down");
+                t.setExpiresIn(1);
+                return t;
+            }
+        };
+        TokenValidator v = flaky.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withCircuitBreaker(1, 1, 1, MINUTES)
+                .withStaleGrace(1, MINUTES));
+        assertNotNull(v.validateToken("account=kohsuke"));
+
+        Thread.sleep(1100);
+        down[0] = true;
+        assertNotNull(v.validateToken("account=kohsuke"));
+        assertEquals(2, flaky.count.get());
+
+        try {
+            v.validateToken("account=somebody-else");
+            fail();
+        } catch (OauthClientException e) {
+            // expected
+        }
+        assertNotNull(v.validateToken("account=kohsuke"));
+        assertEquals("the circuit should be open", 2, flaky.count.get());
+    }
+
+    /**
+     * With an executor, an expired token within the grace period is served without waiting for its revalidation.
+     */
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        CountingValidator base = new CountingValidator(1);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withStaleGrace(1, MINUTES)
+                .withExecutor(new Executor() {
+                    public void execute(Runnable command) {
+                        tasks.add(command);
+                    }
+                }));
+        assertNotNull(v.validateToken("account=kohsuke"));
+
+        Thread.sleep(1100);
+        assertNotNull(v.validateToken("account=kohsuke"));
+        assertNotNull(v.validateToken("account=kohsuke"));
+        assertEquals(1, base.count.get());
+        assertEquals("one revalidation for both", 1, tasks.size());
+
+        tasks.remove(0).run();
+        assertEquals(2, base.count.get());
+        assertTrue(v.validateToken("account=kohsuke").getExpiresIn()>=0);
+    }
+
+    /**
+     * Tokens saved to the snapshot are picked up by the next validator without going to the server.
+     */
+    @Test
+    public void snapshot() throws Exception {
+        File f = File.createTempFile("tokens", ".snapshot");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CachedTokenValidator v = (CachedTokenValidator)base.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions().withSnapshot(f, scheduler, 1, HOURS));
+            v.validateToken("account=kohsuke,scope=read");
+            v.validateToken("invalid");
+            v.writeSnapshot();
+
+            CountingValidator base2 = new CountingValidator();
+            TokenValidator v2 = base2.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions().withSnapshot(f, scheduler, 1, HOURS));
+            OauthToken t = v2.validateToken("account=kohsuke,scope=read", "read");
+            assertEquals("kohsuke", t.account);
+            assertEquals("account=kohsuke,scope=read", t.accessToken);
+            assertTrue(t.getExpiresIn()>0);
+            assertEquals(0, base2.count.get());
+
+            assertNull(v2.validateToken("invalid"));
+            assertEquals(1, base2.count.get());
+        } finally {
+            scheduler.shutdownNow();
+            f.delete();
+        }
+    }
+
+    /**
+     * Tokens in the snapshot that nobody has asked for yet are kept when the snapshot is written again.
+     */
+    @Test
+    public void snapshotCarriedForward() throws Exception {
+        File f = File.createTempFile("tokens", ".snapshot");
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CachedTokenValidator v = (CachedTokenValidator)base.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions().withSnapshot(f, scheduler, 1, HOURS));
+            v.validateToken("account=a");
+            v.validateToken("account=b");
+            v.writeSnapshot();
+
+            CountingValidator base2 = new CountingValidator();
+            CachedTokenValidator v2 = (CachedTokenValidator)base2.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions().withSnapshot(f, scheduler, 1, HOURS));
+            assertEquals("a", v2.validateToken("account=a").account);
+            v2.writeSnapshot();
+
+            TokenValidator v3 = base2.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions().withSnapshot(f, scheduler, 1, HOURS));
+            assertEquals("a", v3.validateToken("account=a").account);
+            assertEquals("b", v3.validateToken("account=b").account);
+            assertEquals(0, base2.count.get());
+        } finally {
+            scheduler.shutdownNow();
+            f.delete();
+        }
+    }
+
+    /**
+     * A validator that's no longer used gets garbage collected, and its periodic tasks stop.
+     */
+    @Test
+    public void garbageCollected() throws Exception {
+        File f = File.createTempFile("tokens", ".snapshot");
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            WeakReference<TokenValidator> ref = new WeakReference<TokenValidator>(base.withCache(CacheBuilder.newBuilder(),
+                    new TokenCacheOptions()
+                            .withSnapshot(f, scheduler, 10, MILLISECONDS)
+                            .withMaxStaleness(1, HOURS, 10, scheduler)));
+            assertEquals(2, scheduler.getQueue().size());
+
+            for (int i=0; i<100 && ref.get()!=null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(ref.get());
+
+            for (int i=0; i<100 && !scheduler.getQueue().isEmpty(); i++)
+                Thread.sleep(10);
+            assertTrue(scheduler.getQueue().isEmpty());
+        } finally {
+            scheduler.shutdownNow();
+            f.delete();
+        }
+    }
+
+    /**
+     * A token validated by one node isn't validated again by the other nodes.
+     */
+    @Test
+    public void shared() throws Exception {
+        SharedTokenStore store = SharedTokenStore.loopback();
+        TokenValidator v1 = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withSharedStore(store, MoreExecutors.sameThreadExecutor()));
+        TokenValidator v2 = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withSharedStore(store, MoreExecutors.sameThreadExecutor())
+                .withFingerprintKeys(true));
+
+        assertEquals("kohsuke", v1.validateToken("account=kohsuke").account);
+        OauthToken t = v2.validateToken("account=kohsuke");
+        assertEquals("kohsuke", t.account);
+        assertEquals("account=kohsuke", t.accessToken);
+        assertEquals(1, base.count.get());
+    }
+
+    /**
+     * Invalidated tokens get validated again, whether they are found by the token, the account, or the scope.
+     */
+    @Test
+    public void invalidate() throws Exception {
+        CacheBuilder<Object,Object> listening = CacheBuilder.newBuilder().removalListener(new RemovalListener<Object,Object>() {
+            public void onRemoval(RemovalNotification<Object,Object> n) {
+            }
+        });
+
+        // with the secondary indexes, and with a full scan as the fallback
+        for (CacheBuilder<Object,Object> cb : Arrays.asList(CacheBuilder.newBuilder(), listening)) {
+            base.count.set(0);
+            TokenValidator v = base.withCache(cb, new TokenCacheOptions()).or(new MockTokenValidator());
+            String a = "account=alice,scope=read write", b = "account=bob,scope=read", c = "account=charlie,scope=admin";
+            for (String t : Arrays.asList(a,b,c))
+                v.validateToken(t);
+
+            v.invalidate(a);
+            v.validateToken(a);
+            assertEquals(4, base.count.get());
+
+            v.invalidateAccount("bob");
+            v.validateToken(a);
+            v.validateToken(b);
+            assertEquals(5, base.count.get());
+
+            v.invalidateScope("read");
+            for (String t : Arrays.asList(a,b,c))
+                v.validateToken(t);
+            assertEquals(7, base.count.get());
+        }
+    }
+
+    /**
+     * Tokens invalidated by the account or the scope aren't restored from the shared store.
+     */
+    @Test
+    public void invalidateShared() throws Exception {
+        for (boolean fingerprint : new boolean[]{false,true}) {
+            SharedTokenStore store = SharedTokenStore.loopback();
+            base.count.set(0);
+            TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                    .withSharedStore(store, MoreExecutors.sameThreadExecutor())
+                    .withFingerprintKeys(fingerprint));
+            String a = "account=alice,scope=read", b = "account=bob,scope=write";
+            v.validateToken(a);
+            v.validateToken(b);
+
+            v.invalidateAccount("alice");
+            v.invalidateScope("write");
+            v.validateToken(a);
+            v.validateToken(b);
+            assertEquals(4, base.count.get());
+        }
+    }
+
+    /**
+     * A token invalidated while it's being validated isn't put back into the cache by that validation.
+     */
+    @Test
+    public void invalidateInFlight() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1), invalidated = new CountDownLatch(1);
+        CountingValidator slow = new CountingValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                loading.countDown();
+                try {
+                    invalidated.await();
+                } catch (InterruptedException e) {
+                    throw new OauthClientException("interrupted",e);
+                }
+                return super.validateToken(token);
+            }
+        };
+        final TokenValidator v = slow.withCache();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<OauthToken> f = es.submit(new Callable<OauthToken>() {
+                public OauthToken call() throws Exception {
+                    return v.validateToken("account=alice");
+                }
+            });
+            loading.await();
+            v.invalidateAccount("alice");
+            invalidated.countDown();
+            assertEquals("alice", f.get().account);
+
+            v.validateToken("account=alice");
+            assertEquals(2, slow.count.get());
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    /**
+     * Popular tokens survive a scan of tokens that are used only once, which would flush an LRU cache.
+     */
+    @Test
+    public void tinyLfu() throws Exception {
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions().withTinyLfu(100));
+        for (int n=0; n<20; n++)
+            for (int i=0; i<10; i++)
+                v.validateToken("account=hot"+i);
+
+        for (int i=0; i<1000; i++)
+            v.validateToken("account=scan"+i);
+
+        base.count.set(0);
+        for (int i=0; i<10; i++)
+            v.validateToken("account=hot"+i);
+        assertEquals(0, base.count.get());
+
+        v.invalidateAccount("hot0");
+        v.validateToken("account=hot0");
+        assertEquals(1, base.count.get());
+    }
+
+    /**
+     * A token trusted for too long is revalidated in the background, so a revocation takes effect
+     * without callers ever waiting for the server.
+     */
+    @Test
+    public void maxStaleness() throws Exception {
+        final AtomicBoolean revoked = new AtomicBoolean();
+        CountingValidator revocable = new CountingValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                OauthToken t = super.validateToken(token);
+                return revoked.get() ? null : t;
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            TokenValidator v = revocable.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                    .withMaxStaleness(300, MILLISECONDS, 100, scheduler));
+            assertNotNull(v.validateToken("account=kohsuke"));
+
+            Thread.sleep(350);
+            revoked.set(true);
+            // this hit queues the token, and finding the revocation is left to the background
+            assertNotNull("served from the cache while revalidating", v.validateToken("account=kohsuke"));
+
+            long deadline = System.currentTimeMillis()+10000;
+            while (v.validateToken("account=kohsuke")!=null) {
+                assertTrue("should have been revalidated by now", System.currentTimeMillis()<deadline);
+                Thread.sleep(10);
+            }
+            assertEquals(2, revocable.count.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * With a byte budget, the cache holds as many tokens as fit, with either cache engine.
+     */
+    @Test
+    public void maximumBytes() throws Exception {
+        for (TokenCacheOptions o : Arrays.asList(new TokenCacheOptions(), new TokenCacheOptions().withTinyLfu(1))) {
+            TokenMetrics metrics = new TokenMetrics();
+            TokenValidator v = base.withCache(CacheBuilder.newBuilder(), o.withMaximumBytes(64*1024).withMetrics(metrics));
+            for (int i=0; i<1000; i++)
+                v.validateToken("account=kohsuke"+i+",scope=read write");
+
+            long bytes = metrics.getRetainedBytes();
+            assertTrue(bytes<=64*1024);
+            assertTrue(bytes>32*1024);
+        }
+    }
+
+    /**
+     * An account minting lots of tokens only evicts its own.
+     */
+    @Test
+    public void partitions() throws Exception {
+        TokenMetrics metrics = new TokenMetrics();
+        TokenValidator v = base.withCache(CacheBuilder.newBuilder(), new TokenCacheOptions()
+                .withAccountPartitions(20, 5, 15).withMetrics(metrics));
+        for (int i=0; i<5; i++)
+            v.validateToken("account=quiet,token_type="+i);
+        for (int i=0; i<100; i++)
+            v.validateToken("account=noisy,token_type="+i);
+
+        base.count.set(0);
+        for (int i=0; i<5; i++)
+            v.validateToken("account=quiet,token_type="+i);
+        assertEquals(0, base.count.get());
+
+        PartitionStats quiet = metrics.getPartitionStats().get("quiet");
+        assertEquals(5, quiet.getSize());
+        assertEquals(0.5, quiet.getHitRate());
+        PartitionStats noisy = metrics.getPartitionStats().get("noisy");
+        assertEquals(15, noisy.getSize());
+        assertEquals(85, noisy.getEvictionCount());
+    }
+
+    /**
+     * Counts the calls, and gives valid tokens a lifetime, which {@link MockTokenValidator} can't.
+     */
+    static class CountingValidator extends MockTokenValidator {
+        private final int expiresIn;
+        final AtomicInteger count = new AtomicInteger();
+
+        CountingValidator() {
+            this(3600);
+        }
+
+        CountingValidator(int expiresIn) {
+            this.expiresIn = expiresIn;
+        }
+
+        @Override
+        public OauthToken validateToken(String token) throws OauthClientException {
+            count.incrementAndGet();
+            OauthToken t = super.validateToken(token);
+            if (t!=null)
+                t.setExpiresIn(expiresIn);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.CachedTokenValidatorTest.CountingValidator;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class CascadingTokenValidatorTest {
+    /**
+     * Once the right validator has validated a family of tokens, the left validator isn't asked for them.
+     */
+    @Test
+    public void routing() throws Exception {
+        CountingValidator left = new LeftValidator();
+        CountingValidator right = new CountingValidator();
+        TokenValidator v = left.or(right, TokenClassifier.prefix(9));
+
+        assertEquals("right1", v.validateToken("account=right1").account);
+        assertEquals(1, left.count.get());
+        assertEquals("right2", v.validateToken("account=right2").account);
+        assertEquals("right3", v.validateTokenAsync("account=right3").get().account);
+        assertEquals(1, left.count.get());
+        assertEquals(3, right.count.get());
+
+        // other families still go to the left first
+        assertEquals("left", v.validateToken("account=left").account);
+        assertEquals(2, left.count.get());
+        assertEquals(3, right.count.get());
+    }
+
+    /**
+     * If the routed validator doesn't know the token after all, the other one is still asked.
+     */
+    @Test
+    public void misroute() throws Exception {
+        CountingValidator left = new LeftValidator();
+        TokenValidator v = left.or(new MockTokenValidator(), TokenClassifier.FINGERPRINT);
+
+        assertNull(v.validateToken("invalid"));
+        assertEquals("right", v.validateToken("account=right").account);
+        assertEquals("left", v.validateToken("account=left").account);
+        assertEquals(3, left.count.get());
+    }
+
+    /**
+     * Bulk validation honors the routes, and keeps the order of tokens.
+     */
+    @Test
+    public void bulk() throws Exception {
+        CountingValidator left = new LeftValidator();
+        TokenValidator v = left.or(new MockTokenValidator(), TokenClassifier.prefix(9));
+        v.validateToken("account=right0");
+        left.count.set(0);
+
+        Map<String,OauthToken> r = v.validateTokens(Arrays.asList("account=right1", "account=left", "invalid", "account=right2"));
+        assertEquals(Arrays.asList("account=right1", "account=left", "invalid", "account=right2"), Arrays.asList(r.keySet().toArray()));
+        assertEquals("right1", r.get("account=right1").account);
+        assertEquals("left", r.get("account=left").account);
+        assertNull(r.get("invalid"));
+        assertEquals("right2", r.get("account=right2").account);
+        assertEquals(2, left.count.get());
+    }
+
+    /**
+     * Only knows the tokens of the account "left".
+     */
+    static class LeftValidator extends CountingValidator {
+        @Override
+        public OauthToken validateToken(String token) throws OauthClientException {
+            OauthToken t = super.validateToken(token);
+            return t!=null && "left".equals(t.account) ? t : null;
+        }
+    }
+}
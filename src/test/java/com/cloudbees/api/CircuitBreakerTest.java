@@ -0,0 +1,82 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class CircuitBreakerTest {
+    private final CircuitBreaker b = new CircuitBreaker(2, 100, 300);
+
+    private boolean allowed(long now) {
+        try {
+            b.check(now);
+            return true;
+        } catch (OauthClientException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens after consecutive failures, lets one probe through after the backoff,
+     * and doubles the backoff each time the probe fails.
+     */
+    @Test
+    public void backoff() {
+        assertTrue(allowed(0));
+        b.record(false,false,0);
+        assertTrue(allowed(0));
+        b.record(false,false,0);
+
+        assertFalse(allowed(99));
+        assertTrue(allowed(100));
+        assertFalse("only one probe at a time", allowed(100));
+        b.record(false,true,100);
+
+        assertFalse(allowed(299));
+        assertTrue(allowed(300));
+        b.record(false,true,300);
+
+        assertFalse("capped at the max backoff", allowed(599));
+        assertTrue(allowed(600));
+        b.record(true,true,600);
+
+        assertFalse(b.isOpen());
+        assertTrue(allowed(600));
+    }
+
+    /**
+     * Failures of calls that were in flight when the circuit opened don't push it further out,
+     * nor let another probe through while one is in progress.
+     */
+    @Test
+    public void burst() throws Exception {
+        for (int i=0; i<5; i++)
+            assertFalse(b.check(0));
+        for (int i=0; i<5; i++)
+            b.record(false,false,0);
+
+        assertFalse(allowed(99));
+        assertTrue(b.check(100));
+        b.record(false,false,100);  // a straggler
+        assertFalse("still probing", allowed(100));
+        b.record(false,true,100);
+
+        assertFalse(allowed(299));
+        assertTrue(allowed(300));
+    }
+
+    /**
+     * A success in between resets the count.
+     */
+    @Test
+    public void consecutive() {
+        b.record(false,false,0);
+        b.record(true,false,0);
+        b.record(false,false,0);
+        assertTrue(allowed(0));
+    }
+}
@@ -0,0 +1,87 @@
+package com.cloudbees.api;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ExpiryWheelTest {
+    private final ConcurrentHashMap<String,String> map = new ConcurrentHashMap<String,String>();
+    private final ExpiryWheel<String,String> wheel = new ExpiryWheel<String,String>(map, 1000, 8, 0);
+
+    private void put(String key, long deadline) {
+        map.put(key,key);
+        wheel.schedule(key,key,deadline);
+    }
+
+    /**
+     * Each entry goes away at its own deadline.
+     */
+    @Test
+    public void perEntryDeadline() {
+        put("a", 2000);
+        put("b", 5000);
+
+        wheel.expire(1999);
+        assertTrue(map.containsKey("a"));
+        wheel.expire(2000);
+        assertFalse(map.containsKey("a"));
+        assertTrue(map.containsKey("b"));
+        wheel.expire(5500);
+        assertFalse(map.containsKey("b"));
+    }
+
+    /**
+     * Deadlines beyond one revolution of the wheel shouldn't fire early.
+     */
+    @Test
+    public void multipleRevolutions() {
+        put("far", 20000);
+
+        wheel.expire(12000);   // passes the slot of "far" once
+        assertTrue(map.containsKey("far"));
+        wheel.expire(20000);
+        assertFalse(map.containsKey("far"));
+    }
+
+    /**
+     * If the entry got replaced in the mean time, the new value should stay.
+     */
+    @Test
+    public void replacedValueSurvives() {
+        put("a", 2000);
+        map.put("a","newer");
+
+        wheel.expire(3000);
+        assertEquals("newer", map.get("a"));
+    }
+
+    /**
+     * Cancelled entries are left alone, and dropped from their slot.
+     */
+    @Test
+    public void cancel() {
+        map.put("a","a");
+        wheel.schedule("a","a",2000).cancel();
+
+        wheel.expire(3000);
+        assertEquals("a", map.get("a"));
+    }
+
+    /**
+     * Falling far behind shouldn't leave anything expired behind.
+     */
+    @Test
+    public void catchUp() {
+        put("a", 2000);
+        put("b", 9000);
+        put("c", 30000);
+
+        wheel.expire(100000);
+        assertTrue(map.isEmpty());
+    }
+}
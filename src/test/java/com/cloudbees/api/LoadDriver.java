@@ -0,0 +1,212 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates tokens with a {@link TokenValidator} from many threads for a while,
+ * and reports the throughput and the latency as the callers see it.
+ *
+ * <p>
+ * Tokens are drawn with a Zipf distribution, so a few of them are popular and most are not,
+ * like with real clients. Pair it with {@link StandInOauthServer} to also see how many calls
+ * made it to the server:
+ * <pre>
+ * LoadDriver.Report r = new LoadDriver()
+ *     .withThreads(32).withDuration(30, SECONDS)
+ *     .withTokens(tokens, 1.0)
+ *     .withUpstream(server)
+ *     .run(TokenValidator.from(server.createClient()).withCache());
+ * System.out.println(r);
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class LoadDriver {
+    private int threads = 8;
+    private long duration = TimeUnit.SECONDS.toNanos(10);
+    private List<String> tokens = new ArrayList<String>();
+    private double[] cdf = new double[0];
+    private StandInOauthServer upstream;
+
+    public LoadDriver withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public LoadDriver withDuration(long duration, TimeUnit unit) {
+        this.duration = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Tokens to validate.
+     *
+     * @param skew
+     *      Exponent of the Zipf distribution. 0 draws all the tokens equally, and the larger it is,
+     *      the more the first tokens in the list are drawn over the rest.
+     */
+    public LoadDriver withTokens(List<String> tokens, double skew) {
+        this.tokens = new ArrayList<String>(tokens);
+        cdf = new double[tokens.size()];
+        double sum = 0;
+        for (int i=0; i<cdf.length; i++)
+            cdf[i] = sum += 1/Math.pow(i+1,skew);
+        for (int i=0; i<cdf.length; i++)
+            cdf[i] /= sum;
+        return this;
+    }
+
+    /**
+     * Server whose calls are counted in the report.
+     */
+    public LoadDriver withUpstream(StandInOauthServer upstream) {
+        this.upstream = upstream;
+        return this;
+    }
+
+    /**
+     * Runs the load against the given validator, and blocks until it's done.
+     */
+    public Report run(final TokenValidator validator) throws InterruptedException {
+        if (tokens.isEmpty())
+            throw new IllegalStateException("No tokens to validate");
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong calls = new AtomicLong(), invalids = new AtomicLong(), errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long upstreamCalls = upstream==null ? 0 : upstream.getValidationCount();
+        long upstreamFailures = upstream==null ? 0 : upstream.getFailureCount();
+
+        final long start = System.nanoTime();
+        for (int i=0; i<threads; i++) {
+            Thread t = new Thread("LoadDriver #"+i) {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random();
+                        long end = start+duration;
+                        long now;
+                        while ((now=System.nanoTime())<end) {
+                            String token = next(r);
+                            try {
+                                if (validator.validateToken(token)==null)
+                                    invalids.incrementAndGet();
+                            } catch (OauthClientException e) {
+                                errors.incrementAndGet();
+                            }
+                            latencies.record(System.nanoTime()-now);
+                            calls.incrementAndGet();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime()-start;
+
+        if (upstream!=null) {
+            upstreamCalls = upstream.getValidationCount()-upstreamCalls;
+            upstreamFailures = upstream.getFailureCount()-upstreamFailures;
+        }
+        return new Report(elapsed, calls.get(), invalids.get(), errors.get(), latencies, upstreamCalls, upstreamFailures);
+    }
+
+    private String next(Random r) {
+        int idx = Arrays.binarySearch(cdf, r.nextDouble());
+        if (idx<0)  idx = -idx-1;
+        return tokens.get(Math.min(idx,tokens.size()-1));
+    }
+
+    /**
+     * Outcome of {@link LoadDriver#run(TokenValidator)}.
+     */
+    public static final class Report {
+        private final long elapsed, calls, invalids, errors;
+        private final long p50, p99, p999;
+        private final long upstreamCalls, upstreamFailures;
+
+        Report(long elapsed, long calls, long invalids, long errors, LatencyHistogram latencies, long upstreamCalls, long upstreamFailures) {
+            this.elapsed = elapsed;
+            this.calls = calls;
+            this.invalids = invalids;
+            this.errors = errors;
+            this.p50 = latencies.getPercentile(0.5, TimeUnit.MICROSECONDS);
+            this.p99 = latencies.getPercentile(0.99, TimeUnit.MICROSECONDS);
+            this.p999 = latencies.getPercentile(0.999, TimeUnit.MICROSECONDS);
+            this.upstreamCalls = upstreamCalls;
+            this.upstreamFailures = upstreamFailures;
+        }
+
+        /**
+         * Number of validations made, including those that failed.
+         */
+        public long getCallCount() {
+            return calls;
+        }
+
+        /**
+         * Number of validations that found the token invalid.
+         */
+        public long getInvalidCount() {
+            return invalids;
+        }
+
+        /**
+         * Number of validations that failed with {@link OauthClientException}.
+         */
+        public long getErrorCount() {
+            return errors;
+        }
+
+        /**
+         * Validations per second.
+         */
+        public double getThroughput() {
+            return calls*1e9/elapsed;
+        }
+
+        /**
+         * Latency at the given percentile, which is one of 0.5, 0.99 and 0.999.
+         */
+        public long getLatency(double percentile, TimeUnit unit) {
+            long v;
+            if (percentile==0.5)        v = p50;
+            else if (percentile==0.99)  v = p99;
+            else if (percentile==0.999) v = p999;
+            else    throw new IllegalArgumentException("Unsupported percentile: "+percentile);
+            return v<0 ? v : unit.convert(v, TimeUnit.MICROSECONDS);
+        }
+
+        /**
+         * Number of validation requests the server received, or 0 without {@link LoadDriver#withUpstream(StandInOauthServer)}.
+         */
+        public long getUpstreamCallCount() {
+            return upstreamCalls;
+        }
+
+        /**
+         * Number of those requests that the server failed on purpose.
+         */
+        public long getUpstreamFailureCount() {
+            return upstreamFailures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d calls in %.1fs (%.0f/s), %d invalid, %d errors, latency p50=%dus p99=%dus p999=%dus, %d upstream calls (%d failed)",
+                    calls, elapsed/1e9, getThroughput(), invalids, errors, p50, p99, p999, upstreamCalls, upstreamFailures);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class RacingTokenValidatorTest {
+    private final ExecutorService es = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        es.shutdownNow();
+    }
+
+    /**
+     * The fast validator wins even if it's on the right, and the slow one is left to finish, since others might be waiting on it.
+     */
+    @Test
+    public void parallel() throws Exception {
+        final SlowValidator slow = new SlowValidator(3000, "account=slow");
+        // answers only once the slow one is running, so that it would be interrupted and not just dropped from the queue
+        TokenValidator fast = new MockTokenValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                try {
+                    slow.started.await();
+                } catch (InterruptedException e) {
+                    throw new OauthClientException("interrupted",e);
+                }
+                return super.validateToken(token);
+            }
+        };
+        TokenValidator v = slow.or(fast, es);
+
+        long start = System.currentTimeMillis();
+        assertEquals("fast", v.validateToken("account=fast").account);
+        assertTrue(System.currentTimeMillis()-start < 2000);
+
+        assertFalse("the loser shouldn't have been interrupted", slow.interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * If neither knows the token, the answer is null.
+     */
+    @Test
+    public void bothNull() throws Exception {
+        TokenValidator v = new MockTokenValidator().or(new MockTokenValidator(), es);
+        assertNull(v.validateToken("invalid"));
+    }
+
+    /**
+     * Once the latency of the left is known, a slow call to it is hedged.
+     */
+    @Test
+    public void hedged() throws Exception {
+        SlowValidator lhs = new SlowValidator(10, "account=left");
+        TokenValidator v = lhs.orHedged(new MockTokenValidator(), es, 0.9);
+        for (int i=0; i<50; i++)
+            assertEquals("left", v.validateToken("account=left").account);
+
+        lhs.delay = 5000;
+        long start = System.currentTimeMillis();
+        assertEquals("right", v.validateToken("account=right").account);
+        assertTrue(System.currentTimeMillis()-start < 2000);
+    }
+
+    static class SlowValidator extends MockTokenValidator {
+        volatile long delay;
+        final String known;
+        final CountDownLatch started = new CountDownLatch(1), interrupted = new CountDownLatch(1);
+
+        SlowValidator(long delay, String known) {
+            this.delay = delay;
+            this.known = known;
+        }
+
+        @Override
+        public OauthToken validateToken(String token) throws OauthClientException {
+            started.countDown();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new OauthClientException("interrupted",e);
+            }
+            return token.equals(known) ? super.validateToken(token) : null;
+        }
+    }
+}
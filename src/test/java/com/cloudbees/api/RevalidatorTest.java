@@ -0,0 +1,87 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthToken;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class RevalidatorTest {
+    private final Map<Object,CachedToken> cache = new HashMap<Object,CachedToken>();
+    /**
+     * A bit before {@link Revalidator} starts its clock. Polls are well past it, so that they get the whole rate.
+     */
+    private final long now = System.currentTimeMillis();
+
+    private CachedToken put(String key) {
+        OauthToken t = new OauthToken();
+        t.accessToken = key;
+        t.setExpiresIn(3600);
+        CachedToken c = new CachedToken(t);
+        cache.put(key,c);
+        return c;
+    }
+
+    /**
+     * The most used tokens go first, as many as the rate allows.
+     */
+    @Test
+    public void mostUsedFirst() {
+        Revalidator r = new Revalidator(1000, 2);
+        for (int i=0; i<3; i++) {
+            String key = "t"+i;
+            CachedToken c = put(key);
+            for (int j=0; j<i; j++)
+                r.onHit(key, key, c, now);     // not due yet
+            r.onHit(key, key, c, now+2000);
+        }
+        assertEquals(3, r.size());
+
+        List<Revalidator.Revalidation> polled = r.poll(now+10000, cache);
+        assertEquals(2, polled.size());
+        assertEquals("t2", polled.get(0).key);
+        assertEquals("t1", polled.get(1).key);
+        assertEquals(1, r.size());
+    }
+
+    /**
+     * The queue doesn't grow beyond its capacity, and tokens that didn't make it try again later.
+     */
+    @Test
+    public void bounded() {
+        Revalidator r = new Revalidator(1000, 1);
+        for (int i=0; i<100; i++) {
+            String key = "t"+i;
+            r.onHit(key, key, put(key), now+2000);
+        }
+        assertEquals(64, r.size());
+
+        assertEquals(1, r.poll(now+10000, cache).size());
+        r.onHit("t99", "t99", cache.get("t99"), now+2000);
+        assertEquals(64, r.size());
+    }
+
+    /**
+     * Tokens that left the cache are dropped without using up the rate.
+     */
+    @Test
+    public void gone() {
+        Revalidator r = new Revalidator(1000, 1);
+        CachedToken a = put("a"), b = put("b");
+        r.onHit("a", "a", a, now);
+        r.onHit("a", "a", a, now+2000);
+        r.onHit("b", "b", b, now+2000);
+        cache.remove("a");
+
+        List<Revalidator.Revalidation> polled = r.poll(now+10000, cache);
+        assertEquals(1, polled.size());
+        assertEquals("b", polled.get(0).key);
+        assertEquals(0, r.size());
+    }
+}
@@ -0,0 +1,383 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClient;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.map.DeserializationConfig.Feature;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.introspect.VisibilityChecker.Std;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.cloudbees.api.StringUtils.*;
+import static org.codehaus.jackson.annotate.JsonAutoDetect.Visibility.*;
+
+/**
+ * Stand-in for the OAuth server that runs in the same JVM, for measuring how validator and generator
+ * chains behave against a server that takes time, fails, and goes down.
+ *
+ * <p>
+ * Unlike {@link MockTokenValidator} and {@link MockTokenGenerator}, every call goes over HTTP on the loopback
+ * interface, and waits for the configured {@link Latency}. A fraction of the calls fail with "500 Internal Server Error",
+ * and all of them fail with "503 Service Unavailable" during outages. Tokens are understood and created
+ * in the format of {@link MockTokenValidator}, so tokens that start with "invalid" are invalid.
+ *
+ * <p>
+ * The server serves the endpoints that {@link OauthClient} of {@link BeesClient} calls: it validates tokens
+ * at {@code GET /oauth/tokens/<token>}, creates them at {@code POST /api/v2/authorizations}, and creates
+ * client tokens at {@code POST /oauth/token}. So validators and generators talk to it the same way they
+ * talk to the real one, through {@link #createClient()}, and the decorators to measure go on top of them.
+ * Credentials of the client aren't checked. For example:
+ * <pre>
+ * StandInOauthServer server = new StandInOauthServer()
+ *     .withLatency(Latency.logNormal(20, 200, MILLISECONDS))
+ *     .withErrorRate(0.01)
+ *     .withOutage(10, 5, SECONDS);
+ * server.start();
+ * TokenValidator v = TokenValidator.from(server.createClient()).withCache();
+ * </pre>
+ *
+ * @author Kohsuke Kawaguchi
+ * @see LoadDriver
+ */
+public class StandInOauthServer {
+    private Latency latency = Latency.none();
+    private double errorRate;
+    private int threads = 16;
+    private int expiresIn = 3600;
+    private String clientAccount = "standin";
+    /**
+     * Outages as pairs of start and end, in nanoseconds since {@link #start()}.
+     */
+    private final List<long[]> outages = new ArrayList<long[]>();
+    private volatile boolean down;
+
+    private final Random random = new Random();
+    private final AtomicLong validations = new AtomicLong(), creations = new AtomicLong(), failures = new AtomicLong();
+    private final AtomicLong serial = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private long startTime;
+
+    public StandInOauthServer withLatency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Fraction of the calls that fail, between 0 and 1.
+     */
+    public StandInOauthServer withErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Makes the server unavailable for the given duration, starting at the given time after {@link #start()}.
+     */
+    public StandInOauthServer withOutage(long after, long duration, TimeUnit unit) {
+        outages.add(new long[]{unit.toNanos(after), unit.toNanos(after+duration)});
+        return this;
+    }
+
+    /**
+     * Number of calls the server handles at once. 16 by default.
+     */
+    public StandInOauthServer withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Lifetime of the tokens, in seconds. 3600 by default.
+     */
+    public StandInOauthServer withExpiresIn(int seconds) {
+        this.expiresIn = seconds;
+        return this;
+    }
+
+    /**
+     * Account that {@link TokenGenerator#createOAuthClientToken(Collection)} creates tokens for,
+     * and so does {@link TokenGenerator#createToken(TokenRequest)} if the request doesn't name one.
+     */
+    public StandInOauthServer withClientAccount(String account) {
+        this.clientAccount = account;
+        return this;
+    }
+
+    /**
+     * Takes the server down until further notice, or brings it back up, on top of the scheduled outages.
+     */
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    public synchronized void start() throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange e) throws IOException {
+                try {
+                    serve(e);
+                } finally {
+                    e.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        startTime = System.nanoTime();
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server==null)   return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * URL of the server, to construct {@link BeesClient} with.
+     */
+    public URL getUrl() {
+        InetSocketAddress a = server.getAddress();
+        try {
+            return new URL("http://"+a.getAddress().getHostAddress()+":"+a.getPort()+"/");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Creates a client of this server, to pass to {@link TokenValidator#from(OauthClient)}
+     * and {@link TokenGenerator#from(OauthClient)}.
+     */
+    public OauthClient createClient() {
+        return new BeesClient(getUrl().toString(), CLIENT_ID, CLIENT_SECRET, "json", "1.0").getOauthClient();
+    }
+
+    /**
+     * Number of validation requests received, whether they succeeded or not.
+     */
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    /**
+     * Number of token creation requests received, whether they succeeded or not.
+     */
+    public long getCreationCount() {
+        return creations.get();
+    }
+
+    /**
+     * Number of requests that failed because of the error rate or an outage.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    private boolean isDown() {
+        if (down)   return true;
+        long t = System.nanoTime()-startTime;
+        for (long[] o : outages) {
+            if (o[0]<=t && t<o[1])
+                return true;
+        }
+        return false;
+    }
+
+    private void serve(HttpExchange e) throws IOException {
+        String path = e.getRequestURI().getRawPath();
+        boolean validation = e.getRequestMethod().equals("GET") && path.startsWith(VALIDATION);
+        boolean creation = e.getRequestMethod().equals("POST") && (path.equals(AUTHORIZATIONS) || path.equals(CLIENT_TOKEN));
+        if (!validation && !creation) {
+            respond(e, 404, null);
+            return;
+        }
+        (validation ? validations : creations).incrementAndGet();
+
+        long nanos = latency.nextNanos(random);
+        if (nanos>0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;     // shutting down
+            }
+        }
+
+        if (isDown()) {
+            failures.incrementAndGet();
+            respond(e, 503, null);
+            return;
+        }
+        if (errorRate>0 && random.nextDouble()<errorRate) {
+            failures.incrementAndGet();
+            respond(e, 500, null);
+            return;
+        }
+
+        OauthToken t;
+        try {
+            if (validation) {
+                String token = URLDecoder.decode(path.substring(VALIDATION.length()), "UTF-8");
+                t = new MockTokenValidator().validateToken(token);
+                if (t!=null)
+                    t.accessToken = token;
+            } else
+            if (path.equals(AUTHORIZATIONS)) {
+                TokenRequest r = MAPPER.readValue(readFully(e.getRequestBody()), TokenRequest.class);
+                t = create(r.getAccountName(), r.getScopes()==null ? null : join(r.getScopes()," "));
+            } else {
+                Map<String,String> form = parseForm(e.getRequestBody());
+                if (!"client_credentials".equals(form.get("grant_type")))
+                    throw new IllegalArgumentException("Unsupported grant type: "+form.get("grant_type"));
+                t = create(null, form.get("scope"));
+            }
+        } catch (OauthClientException x) {
+            throw new AssertionError(x);
+        } catch (IllegalArgumentException x) {
+            respond(e, 400, null);
+            return;
+        } catch (IOException x) {
+            respond(e, 400, null);
+            return;
+        }
+
+        if (t==null) {
+            respond(e, 404, null);
+            return;
+        }
+        t.setExpiresIn(expiresIn);
+        respond(e, 200, TokenCodec.toJson(t));
+    }
+
+    /**
+     * Creates a token in the format of {@link MockTokenValidator}, which can't have empty values.
+     *
+     * @param account
+     *      null for {@link #clientAccount}.
+     */
+    private OauthToken create(String account, String scope) {
+        OauthToken t = new OauthToken();
+        t.account = account==null || account.length()==0 ? clientAccount : account;
+        t.scope = scope==null || scope.length()==0 ? null : scope;
+        t.accessToken = "account="+t.account+(t.scope==null ? "" : ",scope="+t.scope)+",refresh_token="+serial.incrementAndGet();
+        return t;
+    }
+
+    private static void respond(HttpExchange e, int status, byte[] body) throws IOException {
+        e.getResponseHeaders().set("Content-Type", "application/json");
+        e.sendResponseHeaders(status, body==null ? -1 : body.length);
+        if (body!=null) {
+            OutputStream o = e.getResponseBody();
+            o.write(body);
+            o.close();
+        }
+    }
+
+    private static Map<String,String> parseForm(InputStream in) throws IOException {
+        Map<String,String> r = new HashMap<String,String>();
+        String s = new String(readFully(in), "UTF-8");
+        for (String pair : s.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx>0)
+                r.put(URLDecoder.decode(pair.substring(0,idx),"UTF-8"), URLDecoder.decode(pair.substring(idx+1),"UTF-8"));
+        }
+        return r;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len=in.read(buf))>=0)
+                baos.write(buf,0,len);
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * How long the server takes to respond.
+     */
+    public static abstract class Latency {
+        /**
+         * Draws the next latency.
+         */
+        abstract long nextNanos(Random r);
+
+        public static Latency none() {
+            return fixed(0,TimeUnit.NANOSECONDS);
+        }
+
+        public static Latency fixed(long time, TimeUnit unit) {
+            final long nanos = unit.toNanos(time);
+            return new Latency() {
+                long nextNanos(Random r) {
+                    return nanos;
+                }
+            };
+        }
+
+        public static Latency uniform(long min, long max, TimeUnit unit) {
+            final long lo = unit.toNanos(min), hi = unit.toNanos(max);
+            return new Latency() {
+                long nextNanos(Random r) {
+                    return lo+(long)(r.nextDouble()*(hi-lo));
+                }
+            };
+        }
+
+        /**
+         * Log-normal distribution with the given median and 99th percentile, which has the long tail of real servers.
+         */
+        public static Latency logNormal(long median, long p99, TimeUnit unit) {
+            final double mu = Math.log(unit.toNanos(median));
+            final double sigma = Math.log((double)p99/median)/2.326;    // 2.326 is the 99th percentile of the standard normal distribution
+            return new Latency() {
+                long nextNanos(Random r) {
+                    return (long)Math.exp(mu+sigma*r.nextGaussian());
+                }
+            };
+        }
+    }
+
+    private static final String VALIDATION = "/oauth/tokens/", AUTHORIZATIONS = "/api/v2/authorizations", CLIENT_TOKEN = "/oauth/token";
+    private static final String CLIENT_ID = "standin", CLIENT_SECRET = "standin";
+
+    /**
+     * Reads token requests the way the client writes them, by their fields.
+     */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        MAPPER.setVisibilityChecker(new Std(NONE, NONE, NONE, NONE, ANY));
+        MAPPER.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+}
@@ -0,0 +1,122 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.StandInOauthServer.Latency;
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.cloudbees.api.oauth.TokenRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.*;
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class StandInOauthServerTest {
+    private StandInOauthServer server;
+
+    @After
+    public void tearDown() {
+        if (server!=null)
+            server.stop();
+    }
+
+    /**
+     * Tokens go over HTTP through {@link BeesClient} and come back the way {@link MockTokenValidator} understands them.
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        server = new StandInOauthServer().withExpiresIn(60);
+        server.start();
+        TokenValidator validator = TokenValidator.from(server.createClient());
+
+        OauthToken t = TokenGenerator.from(server.createClient()).createToken(new TokenRequest().withAccountName("acme").withScope("a").withScope("b"));
+        assertEquals("acme", t.account);
+        assertEquals("a b", t.scope);
+        assertEquals(60, t.getExpiresIn());
+
+        OauthToken v = validator.validateToken(t.accessToken);
+        assertEquals("acme", v.account);
+        assertTrue(v.validateScopes("a","b"));
+        assertEquals(t.accessToken, v.accessToken);
+
+        assertNull(validator.validateToken("invalid"));
+        assertEquals(2, server.getValidationCount());
+        assertEquals(1, server.getCreationCount());
+    }
+
+    /**
+     * Tokens created without an account are for the client's own account, and are valid.
+     */
+    @Test
+    public void clientAccount() throws Exception {
+        server = new StandInOauthServer().withClientAccount("me");
+        server.start();
+        TokenGenerator generator = TokenGenerator.from(server.createClient());
+        TokenValidator validator = TokenValidator.from(server.createClient());
+
+        OauthToken t = generator.createToken(new TokenRequest().withScope("a"));
+        assertEquals("me", t.account);
+        OauthToken v = validator.validateToken(t.accessToken);
+        assertEquals("me", v.account);
+        assertTrue(v.validateScopes("a"));
+
+        t = generator.createOAuthClientToken(Arrays.asList("a","b"));
+        assertEquals("me", t.account);
+        assertTrue(validator.validateToken(t.accessToken).validateScopes("a","b"));
+        assertEquals(2, server.getCreationCount());
+    }
+
+    /**
+     * Outages and errors surface as {@link OauthClientException}.
+     */
+    @Test
+    public void failures() throws Exception {
+        server = new StandInOauthServer().withOutage(0, 1, HOURS);
+        server.start();
+        try {
+            TokenValidator.from(server.createClient()).validateToken("account=a");
+            fail();
+        } catch (OauthClientException e) {
+            // expected
+        }
+
+        server.stop();
+        server = new StandInOauthServer().withErrorRate(1);
+        server.start();
+        try {
+            TokenValidator.from(server.createClient()).validateToken("account=a");
+            fail();
+        } catch (OauthClientException e) {
+            // expected
+        }
+        assertEquals(1, server.getFailureCount());
+    }
+
+    /**
+     * With the cache, the load only reaches the server once for each token.
+     */
+    @Test
+    public void load() throws Exception {
+        server = new StandInOauthServer().withLatency(Latency.logNormal(2, 10, MILLISECONDS));
+        server.start();
+
+        List<String> tokens = new ArrayList<String>();
+        for (int i=0; i<50; i++)
+            tokens.add("account=a,token_type="+i);
+
+        LoadDriver.Report r = new LoadDriver().withThreads(4).withDuration(500, MILLISECONDS)
+                .withTokens(tokens, 1.0).withUpstream(server)
+                .run(TokenValidator.from(server.createClient()).withCache());
+        assertEquals(0, r.getErrorCount());
+        assertEquals(0, r.getInvalidCount());
+        assertTrue(r.toString(), r.getCallCount()>r.getUpstreamCallCount());
+        assertTrue(r.toString(), r.getUpstreamCallCount()<=tokens.size());
+        assertTrue(r.toString(), r.getLatency(0.5, MICROSECONDS)<=r.getLatency(0.999, MICROSECONDS));
+    }
+}
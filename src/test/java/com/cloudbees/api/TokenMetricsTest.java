@@ -0,0 +1,100 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.TokenMetrics.Event;
+import com.google.common.cache.CacheBuilder;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class TokenMetricsTest {
+    /**
+     * Hits, misses, and loads of the validator cache are counted.
+     */
+    @Test
+    public void validator() throws Exception {
+        TokenMetrics metrics = new TokenMetrics();
+        final List<Event> events = new ArrayList<Event>();
+        metrics.addListener(new TokenMetrics.Listener() {
+            public void onEvent(Event event, long nanos) {
+                events.add(event);
+            }
+        });
+
+        TokenValidator v = new CachedTokenValidatorTest.CountingValidator().withCache(CacheBuilder.newBuilder(),
+                new TokenCacheOptions().withMetrics(metrics));
+        v.validateToken("account=foo");
+        v.validateToken("account=foo");
+        v.validateToken("invalid");
+        v.validateToken("invalid");
+
+        assertEquals(1, metrics.getHitCount());
+        assertEquals(2, metrics.getMissCount());
+        assertEquals(1, metrics.getNegativeHitCount());
+        assertEquals(2, metrics.getLoadCount());
+        assertEquals(0, metrics.getLoadFailureCount());
+        assertEquals(0.5, metrics.getHitRatio());
+        assertTrue(metrics.getLoadLatency(0.99, TimeUnit.NANOSECONDS)>0);
+        assertEquals(6, events.size());
+    }
+
+    /**
+     * Bulk validation counts each token once.
+     */
+    @Test
+    public void bulk() throws Exception {
+        TokenMetrics metrics = new TokenMetrics();
+        TokenValidator v = new CachedTokenValidatorTest.CountingValidator().withCache(CacheBuilder.newBuilder(),
+                new TokenCacheOptions().withMetrics(metrics));
+        v.validateToken("account=a");
+
+        v.validateTokens(Arrays.asList("account=a", "account=b", "account=c", "invalid", "account=b"));
+        assertEquals(1, metrics.getHitCount());
+        assertEquals(4, metrics.getMissCount());
+        assertEquals(4, metrics.getLoadCount());
+    }
+
+    /**
+     * Calls to the server are counted when the client is wrapped.
+     */
+    @Test
+    public void generator() throws Exception {
+        TokenMetrics metrics = new TokenMetrics();
+        TokenGenerator g = new CachedTokenGeneratorTest.CountingGenerator(3600).withCache(CacheBuilder.newBuilder(),
+                new TokenCacheOptions().withMetrics(metrics));
+        g.createOAuthClientToken("a");
+        g.createOAuthClientToken("a");
+        g.createOAuthClientToken("b");
+
+        assertEquals(1, metrics.getHitCount());
+        assertEquals(2, metrics.getMissCount());
+        assertEquals(2, metrics.getCount(Event.LOAD_SUCCESS));
+    }
+
+    /**
+     * Can be exposed through JMX.
+     */
+    @Test
+    public void jmx() throws Exception {
+        TokenMetrics metrics = new TokenMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cloudbees.api:type=TokenMetricsTest");
+        server.registerMBean(metrics, name);
+        try {
+            assertEquals(0L, server.getAttribute(name, "HitCount"));
+            assertEquals(-1.0, server.getAttribute(name, "LoadLatencyMedian"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
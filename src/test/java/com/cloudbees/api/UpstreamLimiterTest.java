@@ -0,0 +1,133 @@
+package com.cloudbees.api;
+
+import com.cloudbees.api.oauth.OauthClientException;
+import com.cloudbees.api.oauth.OauthToken;
+import com.google.common.cache.CacheBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.*;
+import static junit.framework.Assert.*;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class UpstreamLimiterTest {
+    private final TokenMetrics metrics = new TokenMetrics();
+
+    /**
+     * Calls over the rate are rejected right away, or wait for their turn if allowed to.
+     */
+    @Test
+    public void rate() throws Exception {
+        TokenValidator v = new MockTokenValidator().withLimiter(new UpstreamLimiter()
+                .withRate(10, 1).withMetrics(metrics));
+        assertNotNull(v.validateToken("account=a"));
+        try {
+            v.validateToken("account=b");
+            fail();
+        } catch (UpstreamLimitException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getRejectedCount());
+
+        v = new MockTokenValidator().withLimiter(new UpstreamLimiter()
+                .withRate(10, 1).withMaxWait(1, SECONDS).withMetrics(metrics));
+        long start = System.nanoTime();
+        for (int i=0; i<3; i++)
+            assertNotNull(v.validateToken("account=a"));
+        assertTrue(System.nanoTime()-start >= MILLISECONDS.toNanos(150));
+        assertEquals(2, metrics.getThrottledCount());
+    }
+
+    /**
+     * A limited {@link BatchTokenValidator} still takes batches, each of which counts as one call.
+     */
+    @Test
+    public void batch() throws Exception {
+        BatchingTokenValidatorTest.RecordingValidator base = new BatchingTokenValidatorTest.RecordingValidator();
+        TokenValidator v = base.withLimiter(new UpstreamLimiter().withRate(10, 1));
+        assertTrue(v instanceof BatchTokenValidator);
+        assertEquals(2, v.validateTokens(Arrays.asList("account=a", "account=b")).size());
+        assertEquals(1, base.batches.size());
+    }
+
+    /**
+     * A call interrupted while waiting for its turn gives back the permit it was waiting for.
+     */
+    @Test
+    public void interrupted() throws Exception {
+        final TokenValidator v = new MockTokenValidator().withLimiter(new UpstreamLimiter()
+                .withRate(1, 1).withMaxWait(1, MINUTES));
+        assertNotNull(v.validateToken("account=a"));
+
+        // reserves the next permit, which takes a second to earn
+        Thread.currentThread().interrupt();
+        try {
+            v.validateToken("account=a");
+            fail();
+        } catch (UpstreamLimitException e) {
+            assertTrue(Thread.interrupted());
+        }
+
+        // so this one doesn't have to wait for two
+        long start = System.nanoTime();
+        assertNotNull(v.validateToken("account=a"));
+        assertTrue(System.nanoTime()-start < MILLISECONDS.toNanos(1500));
+    }
+
+    /**
+     * Calls beyond the maximum in flight are rejected, and they don't trip the circuit breaker of the cache.
+     */
+    @Test
+    public void inFlight() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1), latch = new CountDownLatch(1);
+        TokenValidator slow = new MockTokenValidator() {
+            @Override
+            public OauthToken validateToken(String token) throws OauthClientException {
+                entered.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.validateToken(token);
+            }
+        };
+        UpstreamLimiter limiter = new UpstreamLimiter().withMaxInFlight(1).withMetrics(metrics);
+        final TokenValidator v = slow.withLimiter(limiter).withCache(CacheBuilder.newBuilder(),
+                new TokenCacheOptions().withCircuitBreaker(1, 1, 1, MINUTES));
+
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            Future<OauthToken> f = es.submit(new Callable<OauthToken>() {
+                public OauthToken call() throws Exception {
+                    return v.validateToken("account=a");
+                }
+            });
+            entered.await();
+            assertEquals(1, limiter.getInFlight());
+
+            try {
+                v.validateToken("account=b");
+                fail();
+            } catch (UpstreamLimitException e) {
+                // expected
+            }
+            assertEquals(1, metrics.getRejectedCount());
+
+            latch.countDown();
+            assertEquals("a", f.get().account);
+            assertEquals(0, limiter.getInFlight());
+            assertEquals("the circuit should be closed", "b", v.validateToken("account=b").account);
+        } finally {
+            es.shutdown();
+        }
+    }
+}